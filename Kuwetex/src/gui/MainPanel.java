@@ -4,6 +4,8 @@ import java.awt.BorderLayout;
 import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ItemEvent;
+import java.awt.event.ItemListener;
 import java.io.IOException;
 import java.util.Calendar;
 
@@ -11,10 +13,15 @@ import javax.swing.JButton;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.JToggleButton;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
 
 import kuwetexclient.KuwetexClient;
+import kuwetexclient.ReportStore;
 import network.Connection;
 import network.Message;
+import network.Subscription;
 
 /**
  * The main panel that provides interaction with user.
@@ -22,11 +29,18 @@ import network.Message;
 @SuppressWarnings("serial")
 public class MainPanel extends JPanel {
 	public static final int DEFAULT_COLLUMN_SIZE = 20;
+	private static final String REPORT_SEPARATOR = "------------------------\n";
+	private static final int MAX_SHOWN = 256 * 1024; // characters kept in the text area
+	private static final String TRIMMED_NOTE = "(Older text is not shown. All the reports are in "
+			+ KuwetexClient.REPORT_FILE + ")\n";
 	
 	private final Connection connection;
+	private long reportSequence = 0; // number of records received so far
 	
 	private JTextArea textArea;
 	private JButton connectButton, getReportButton, disconnectButton, forceCleanButton, recommButton;
+	private JToggleButton liveButton;
+	private Subscription subscription = null;
 	//private final JPanel thisPanel = this, recommendPanel;
 	
 	/**
@@ -52,7 +66,7 @@ public class MainPanel extends JPanel {
 				String msg ="New connection: " + Calendar.getInstance().getTime().toString();
 				try {
 					msg = connection.connectToServer(msg);
-					textArea.append(msg + "\n");
+					show(msg + "\n");
 					connectButton.setEnabled(false);
 				} catch (IOException e) {					
 					e.printStackTrace();
@@ -65,6 +79,10 @@ public class MainPanel extends JPanel {
 		getReportButton.addActionListener(new ReportButtonHandler());
 		southPanel.add(getReportButton);
 		
+		liveButton = new JToggleButton("Live");
+		liveButton.addItemListener(new LiveButtonHandler());
+		southPanel.add(liveButton);
+		
 		disconnectButton = new JButton("Diconnect");
 		disconnectButton.addActionListener(new ActionListener() {			
 			@Override
@@ -73,7 +91,7 @@ public class MainPanel extends JPanel {
 				if (connection.closeConnection()) {
 					checkConnection();
 				} else {
-					textArea.append("Error. Could not disconnect form the server.\n");
+					show("Error. Could not disconnect form the server.\n");
 				}
 			}
 		});
@@ -97,43 +115,271 @@ public class MainPanel extends JPanel {
 		add (southPanel, BorderLayout.SOUTH);
 	}
 	
+	/**
+	 * Asks only for the records that were added since the last report and appends them.
+	 * The records come in chunks, every chunk is saved to the file and shown when it comes,
+	 * so the whole report is never kept in one String.
+	 * Old servers do not know incremental reports, they send the whole history every time.
+	 * The request is sent in the background, only one report is requested at a time.
+	 * */
 	private class ReportButtonHandler implements ActionListener {
+		private boolean waiting = false;
+		
 		@Override
 		public void actionPerformed(ActionEvent arg0) {	
-			if (! checkConnection()) return;
-			String raport = connection.sendNewMessage(null, Message.GET_RAPORT);
-			raport = "------------------------\n" + raport;
-			textArea.append(raport);
+			if (! checkConnection() || waiting) return;
+			waiting = true;
+			if (connection.isLegacyServer()) {
+				connection.sendAsync(new Message(null, Message.GET_RAPORT)).whenComplete(new ResponseHandler() {
+					@Override
+					void handle(Message response) {
+						waiting = false;
+						showReport(response);
+					}
+				});
+				return;
+			}
+			final ReportChunks chunks = new ReportChunks(reportSequence);
+			connection.sendStreaming(new Message(null, Message.GET_RAPORT_STREAM, reportSequence), chunks)
+					.whenComplete(new ResponseHandler() {
+				@Override
+				void handle(Message response) {
+					waiting = false;
+					chunks.finish(response);
+				}
+			});
+		}
+		
+		/**
+		 * Shows the whole report of an old server and saves it to the file instead of the earlier ones.
+		 * */
+		private void showReport(Message response) {
+			if (response != null && response.getHEADER() == Message.BUSY) {
+				show(response.getMessage() + "\n");
+				return;
+			}
+			if (response == null || response.getHEADER() != Message.GET_RAPORT) {
+				show("Error. Could not get the report.\n");
+				return;
+			}
+			final String raport = REPORT_SEPARATOR + response.getMessage();
+			show(raport);
 			//textArea.append("\n");
+			KuwetexClient.writeReport(new Runnable() {
+				@Override
+				public void run() {
+					String result = "Saved to file: " + KuwetexClient.REPORT_FILE + "\n\n";
+					try {
+						ReportStore store = KuwetexClient.getReportStore();
+						store.beginSegment(true);
+						store.append(raport);
+						store.endSegment();
+					} catch (IOException e) {
+						e.printStackTrace();
+						result = "Error. Could not save to file.\n\n";
+					}
+					showLater(result);
+				}
+			});
+		}
+		
+	}
+	
+	/**
+	 * Writes the chunks of one report to the report store and to the text area.
+	 * Every report is one segment of the store, it is added at the end of the file.
+	 * Chunks are received by the thread of the connection and written by the report writer of the client,
+	 * the text area is changed on the Swing thread. Only the report writer uses store and error.
+	 * */
+	private class ReportChunks implements Connection.ChunkListener {
+		private final long requested; // records the panel had before the report
+		private ReportStore store = null; // null until the first chunk
+		private IOException error = null;
+		
+		ReportChunks(long requested) {
+			this.requested = requested;
+		}
+		
+		@Override
+		public void chunkReceived(final Message chunk) {
+			KuwetexClient.writeReport(new Runnable() {
+				@Override
+				public void run() {
+					String text = chunk.getMessage();
+					if (store == null && error == null) {
+						// history of the server is shorter than ours after its restart, then all of it is sent again
+						begin(requested == 0 || chunk.getSequence() != requested);
+						text = REPORT_SEPARATOR + text;
+					}
+					write(text);
+					showLater(text);
+				}
+			});
+		}
+		
+		private void begin(boolean replace) {
 			try {
-				if (KuwetexClient.saveToFile(raport, KuwetexClient.REPORT_FILE)) {
-					textArea.append("Saved to file: " + KuwetexClient.REPORT_FILE);
-					textArea.append("\n\n");
+				store = KuwetexClient.getReportStore();
+				store.beginSegment(replace);
+			} catch (IOException e) {
+				e.printStackTrace();
+				error = e;
+			}
+		}
+		
+		private void write(String text) {
+			if (error != null) return;
+			try {
+				store.append(text);
+			} catch (IOException e) {
+				e.printStackTrace();
+				error = e;
+			}
+		}
+		
+		/**
+		 * Called on the Swing thread when the report is complete. The report is finished
+		 * by the report writer, after the chunks.
+		 * @param end - RAPORT_END message or null if the report failed.
+		 * */
+		void finish(final Message end) {
+			final boolean complete = end != null && end.getHEADER() == Message.RAPORT_END;
+			if (complete) {
+				reportSequence = end.getSequence();
+			} else {
+				show(end != null && end.getHEADER() == Message.BUSY ? end.getMessage() + "\n"
+						: "Error. Could not get the report.\n");
+			}
+			KuwetexClient.writeReport(new Runnable() {
+				@Override
+				public void run() {
+					if ( ! complete) {
+						if (store != null) end(); // keep what was received
+						return;
+					}
+					String shown = "";
+					if (store == null && error == null) { // no new records
+						begin(requested == 0 || end.getSequence() < requested);
+						write(REPORT_SEPARATOR);
+						shown = REPORT_SEPARATOR;
+					}
+					end();
+					showLater(shown + (error != null ? "Error. Could not save to file.\n\n"
+							: "Saved to file: " + KuwetexClient.REPORT_FILE + "\n\n"));
 				}
+			});
+		}
+		
+		private void end() {
+			if (error != null) return;
+			try {
+				store.endSegment();
 			} catch (IOException e) {
 				e.printStackTrace();
-				textArea.append("Error. Could not save to file.\n\n");
+				error = e;
 			}
 		}
+	}
+	
+	/**
+	 * Subscribes to the events of the server and shows them as they come.
+	 * */
+	private class LiveButtonHandler implements ItemListener, Subscription.Listener {
+		@Override
+		public void itemStateChanged(ItemEvent e) {
+			if (e.getStateChange() == ItemEvent.DESELECTED) {
+				if (subscription != null) subscription.close();
+				subscription = null;
+				return;
+			}
+			if (subscription != null) return;
+			subscription = new Subscription(this);
+			try {
+				if ( ! subscription.start()) {
+					show("Server does not send live events.\n");
+					subscription = null;
+					liveButton.setSelected(false);
+				}
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				show("Error. Could not subscribe.\n");
+				subscription = null;
+				liveButton.setSelected(false);
+			}
+		}
+		
+		@Override
+		public void eventReceived(final Message event) {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					show(event.getMessage() + "\n");
+				}
+			});
+		}
 		
+		@Override
+		public void subscriptionClosed() {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					subscription = null;
+					liveButton.setSelected(false);
+				}
+			});
+		}
 	}
 	
 	private class ForceCleanButtonHandler implements ActionListener {
 		@Override
 		public void actionPerformed(ActionEvent arg0) {
 			if ( ! checkConnection()) return;
-			String raport = connection.sendNewMessage(null, Message.FORCE_CLEANING);
-			textArea.append(raport);
-			textArea.append("\n");
+			connection.sendAsync(new Message(null, Message.FORCE_CLEANING)).whenComplete(new ResponseHandler() {
+				@Override
+				void handle(Message response) {
+					show(response == null ? "Error. Exeption" : response.getMessage());
+					show("\n");
+				}
+			});
 		}
 		
 	}
 	
+	/**
+	 * Appends the text to the text area on the Swing thread.
+	 * */
+	private void showLater(final String text) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				show(text);
+			}
+		});
+	}
+	
+	/**
+	 * Appends the text to the text area. Only the last MAX_SHOWN characters are kept, older lines
+	 * are removed and a note tells that the reports are in REPORT_FILE.
+	 * Must be called on the Swing thread.
+	 * */
+	private void show(String text) {
+		textArea.append(text);
+		int excess = textArea.getDocument().getLength() - MAX_SHOWN;
+		if (excess <= 0) return;
+		try {
+			// cut after a whole line, with room for the note
+			int line = textArea.getLineOfOffset(excess + TRIMMED_NOTE.length());
+			textArea.replaceRange(TRIMMED_NOTE, 0, textArea.getLineEndOffset(line));
+		} catch (BadLocationException e) {
+			textArea.replaceRange(TRIMMED_NOTE, 0, excess + TRIMMED_NOTE.length());
+		}
+	}
+	
 	private boolean checkConnection() {
 		if ( ! connection.isConnected()) {
 			// socket has been closed
 			connectButton.setEnabled(true);
-			textArea.append("You are not connected!\n");
+			show("You are not connected!\n");
 			return false;
 		}
 		return true;
@@ -61,7 +61,15 @@ public class RecommendationsPanel extends JPanel {
 	private class GetRecommendationsButtonHandler implements ActionListener {
 		@Override
 		public void actionPerformed(ActionEvent arg0) {			
-			String text = connection.sendNewMessage(null, Message.GET_RECOMMENDATIONS);
+			connection.sendAsync(new Message(null, Message.GET_RECOMMENDATIONS)).whenComplete(new ResponseHandler() {
+				@Override
+				void handle(Message response) {
+					showRecommendations(response == null ? "Error. Exeption" : response.getMessage());
+				}
+			});
+		}
+		
+		private void showRecommendations(String text) {
 			text = "------------------------\n" + text;
 			textArea.append(text);
 			textArea.append("\n");
@@ -0,0 +1,33 @@
+package gui;
+
+import java.util.function.BiConsumer;
+
+import javax.swing.SwingUtilities;
+
+import network.Message;
+
+/**
+ * Receives the response of an asynchronous request on the Swing event thread,
+ * so the panel does not freeze while the server works.
+ * Use it with Connection.sendAsync(...).whenComplete(handler).
+ * */
+abstract class ResponseHandler implements BiConsumer<Message, Throwable> {
+	
+	@Override
+	public void accept(final Message response, final Throwable error) {
+		if (error != null)
+			error.printStackTrace();
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				handle(response);
+			}
+		});
+	}
+	
+	/**
+	 * Called on the Swing event thread.
+	 * @param response - response of the server or null if the request failed.
+	 * */
+	abstract void handle(Message response);
+}
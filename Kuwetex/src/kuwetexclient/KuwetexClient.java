@@ -1,6 +1,8 @@
 package kuwetexclient;
 
 import java.awt.CardLayout;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -8,6 +10,10 @@ import java.net.UnknownHostException;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
@@ -30,6 +36,18 @@ public class KuwetexClient extends JFrame {
 	private static JFrame applicationFrame;
 	private JPanel mainPanel, recommendationsPanel = null;
 	
+	private static ReportStore reportStore = null;
+	private static final long CLOSE_TIMEOUT = 10; // s to wait for the reports that are being saved
+	// the only thread that uses the report store, so the reports are saved in order and not on the Swing thread
+	private static final ExecutorService reportWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "kuwetex-report-writer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
 	private static final Map<String, JPanel> panelMap = new HashMap<>(2);
 	private static final String[] PANEL_NAMES = {"mainPanel", "recommPanel"};
 	
@@ -66,6 +84,48 @@ public class KuwetexClient extends JFrame {
 	} */
 	
 	
+	/**
+	 * @return Store of the reports (REPORT_FILE). It is opened when it is needed for the first time.
+	 * @throws IOException
+	 * */
+	public static synchronized ReportStore getReportStore() throws IOException {
+		if (reportStore == null)
+			reportStore = new ReportStore(REPORT_FILE);
+		return reportStore;
+	}
+	
+	/**
+	 * Runs the task on the thread of the report store, after the tasks given earlier.
+	 * Saving a report to the disk takes time, so it is not done on the Swing thread.
+	 * @param task - task that uses the report store.
+	 * */
+	public static void writeReport(Runnable task) {
+		reportWriter.execute(task);
+	}
+	
+	/**
+	 * Waits until the reports that are being saved are written and closes the report store.
+	 * Called when the window is closed.
+	 * */
+	public static void closeReportStore() {
+		reportWriter.shutdown();
+		try {
+			if ( ! reportWriter.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS))
+				System.err.println("Report was not saved in " + CLOSE_TIMEOUT + " s.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (KuwetexClient.class) {
+			if (reportStore == null) return;
+			try {
+				reportStore.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			reportStore = null;
+		}
+	}
+	
 	/**
 	 * Saves given text to the file. It is used to update data about cats.
 	 * @param text - text that will be append to the file.
@@ -109,6 +169,12 @@ public class KuwetexClient extends JFrame {
 				applicationFrame.setResizable(false);
 				applicationFrame.pack();
 				applicationFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+				applicationFrame.addWindowListener(new WindowAdapter() {
+					@Override
+					public void windowClosing(WindowEvent e) {
+						closeReportStore(); // the application exits after it
+					}
+				});
 				applicationFrame.setLocationRelativeTo(null);
 				applicationFrame.setVisible(true);
 				System.out.println("LOADED");
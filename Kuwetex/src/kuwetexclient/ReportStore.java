@@ -0,0 +1,186 @@
+package kuwetexclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * Report file that only grows. Every report (segment) is added at the end of the file,
+ * earlier reports are never written again.
+ * Text is encoded into one direct buffer that is reused for all the writes, so no byte arrays are made.
+ * Start and end of every segment are kept in an index file next to the report,
+ * so any earlier segment can be read back through a memory-mapped view of just that part of the file.
+ * */
+public class ReportStore {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int INDEX_ENTRY = 16; // start and end of a segment (two longs)
+
+	private final FileChannel file, index;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	private long[] offsets = new long[32]; // start0, end0, start1, end1, ...
+	private int segments = 0;
+	private long segmentStart = -1; // -1 = no segment is being written
+
+	/**
+	 * Opens the report file and its index (PATH + ".idx"). A report file without the index
+	 * (written by older versions) becomes the first segment.
+	 * @param PATH - path of the report file. Example: "res/report.txt"
+	 * @throws IOException
+	 * */
+	public ReportStore(final String PATH) throws IOException {
+		file = FileChannel.open(new File(PATH).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		index = FileChannel.open(new File(PATH + ".idx").toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		loadIndex();
+	}
+
+	private void loadIndex() throws IOException {
+		long size = file.size();
+		long entries = index.size() / INDEX_ENTRY;
+		long end = 0;
+		for (long i=0; i<entries; i++) {
+			entry.clear();
+			while (entry.hasRemaining() && index.read(entry, i * INDEX_ENTRY + entry.position()) >= 0);
+			long start = entry.getLong(0), stop = entry.getLong(8);
+			if (start < end || stop < start || stop > size) break; // written only partly
+			addOffsets(start, stop);
+			end = stop;
+		}
+		index.truncate((long) segments * INDEX_ENTRY);
+		if (end < size) { // old file without the index or a report that was not finished
+			if (segments == 0) {
+				addOffsets(0, size);
+				writeIndexEntry(0, size);
+			} else {
+				file.truncate(end);
+			}
+		}
+		file.position(file.size());
+	}
+
+	/**
+	 * Starts new report. The date is written first, as in the other saved files.
+	 * @param replace - if true all earlier reports are deleted (the server sent the whole history again).
+	 * @throws IOException
+	 * */
+	public synchronized void beginSegment(boolean replace) throws IOException {
+		if (segmentStart >= 0)
+			endSegment();
+		if (replace) {
+			file.truncate(0);
+			index.truncate(0);
+			segments = 0;
+		}
+		segmentStart = file.size();
+		file.position(segmentStart);
+		append(Calendar.getInstance().getTime().toString() + "\n\n");
+	}
+
+	/**
+	 * Adds the text at the end of the current report.
+	 * @throws IOException
+	 * */
+	public synchronized void append(CharSequence text) throws IOException {
+		if (segmentStart < 0)
+			throw new IllegalStateException("beginSegment was not called.");
+		CharBuffer chars = CharBuffer.wrap(text);
+		encoder.reset();
+		while (encoder.encode(chars, buffer, true).isOverflow())
+			writeBuffer(); // buffer is full
+		while (encoder.flush(buffer).isOverflow())
+			writeBuffer();
+		writeBuffer();
+	}
+
+	private void writeBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			file.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Finishes the current report and adds it to the index.
+	 * @return Number of the report.
+	 * @throws IOException
+	 * */
+	public synchronized int endSegment() throws IOException {
+		if (segmentStart < 0)
+			throw new IllegalStateException("beginSegment was not called.");
+		long end = file.position();
+		file.force(false);
+		addOffsets(segmentStart, end);
+		writeIndexEntry(segmentStart, end);
+		segmentStart = -1;
+		return segments - 1;
+	}
+
+	private void addOffsets(long start, long end) {
+		if (segments * 2 + 2 > offsets.length)
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		offsets[segments * 2] = start;
+		offsets[segments * 2 + 1] = end;
+		segments++;
+	}
+
+	private void writeIndexEntry(long start, long end) throws IOException {
+		entry.clear();
+		entry.putLong(start).putLong(end).flip();
+		long position = (long) (segments - 1) * INDEX_ENTRY;
+		while (entry.hasRemaining())
+			position += index.write(entry, position);
+	}
+
+	/**
+	 * @return Number of the finished reports.
+	 * */
+	public synchronized int getSegmentCount() {
+		return segments;
+	}
+
+	/**
+	 * Gives the bytes of a finished report without reading the rest of the file.
+	 * @param n - number of the report.
+	 * @return Read-only memory-mapped view of the report (UTF-8).
+	 * @throws IOException
+	 * */
+	public synchronized ByteBuffer mapSegment(int n) throws IOException {
+		if (n < 0 || n >= segments)
+			throw new IndexOutOfBoundsException("No report number " + n);
+		long start = offsets[n * 2];
+		return file.map(FileChannel.MapMode.READ_ONLY, start, offsets[n * 2 + 1] - start);
+	}
+
+	/**
+	 * @param n - number of the report.
+	 * @return Text of the finished report.
+	 * @throws IOException
+	 * */
+	public String readSegment(int n) throws IOException {
+		return StandardCharsets.UTF_8.decode(mapSegment(n)).toString();
+	}
+
+	/**
+	 * Closes the files. A report that was not finished is not in the index.
+	 * */
+	public synchronized void close() throws IOException {
+		try {
+			file.close();
+		} finally {
+			index.close();
+		}
+	}
+}
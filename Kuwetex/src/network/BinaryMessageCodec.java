@@ -0,0 +1,174 @@
+package network;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary format.
+ * Every message is one frame: length of the rest of the frame (int), header (byte),
+ * flags (byte), sequence (long, only if the message has one), correlation id (int, only if the message
+ * has one) and the text of the message encoded in UTF-8.
+ * The stream starts with Protocol.HELLO sent by both sides.
+ * */
+public class BinaryMessageCodec implements MessageCodec {
+	public static final int MAX_FRAME_LENGTH = 128 * 1024 * 1024;
+	
+	private static final int LENGTH_BYTES = 4;
+	private static final int FIXED_BYTES = 2; // header + flags
+	private static final byte HAS_TEXT = 1; // flag, text is null if not set
+	private static final byte HAS_SEQUENCE = 2; // flag, sequence is NO_SEQUENCE if not set
+	private static final int SEQUENCE_BYTES = 8;
+	private static final byte HAS_CORRELATION = 4; // flag, correlation id is NO_CORRELATION if not set
+	private static final int CORRELATION_BYTES = 4;
+	
+	private static final byte[] NO_BYTES = new byte[0];
+	
+	private DataOutputStream out = null;
+	private DataInputStream in = null;
+	private boolean helloRead = false; // for non-blocking reading
+	
+	@Override
+	public void writeHeader(OutputStream out) throws IOException {
+		this.out = new DataOutputStream(out);
+		this.out.write(Protocol.HELLO);
+		this.out.flush();
+	}
+	
+	@Override
+	public void readHeader(InputStream in) throws IOException {
+		this.in = new DataInputStream(in);
+		byte[] hello = new byte[Protocol.HELLO.length];
+		this.in.readFully(hello);
+		Protocol.checkHello(hello);
+	}
+	
+	/**
+	 * Writes the message. The text is written straight from its encoded bytes, without copying it into the frame.
+	 * */
+	@Override
+	public void write(Message message) throws IOException {
+		EncodedText encoded = message.getEncodedText();
+		if (encoded != null) {
+			out.write(encodeHead(message, encoded.length()));
+			encoded.writeTo(out);
+		} else {
+			byte[] payload = encodeText(message.getMessage());
+			out.write(encodeHead(message, payload.length));
+			out.write(payload);
+		}
+		out.flush();
+	}
+	
+	/**
+	 * Encodes the message for a non-blocking connection. Encoded text is not copied:
+	 * the buffers after the first one are views of its segments.
+	 * @return Buffers of the frame, in order.
+	 * */
+	public ByteBuffer[] encode(Message message) {
+		EncodedText encoded = message.getEncodedText();
+		if (encoded == null) {
+			byte[] payload = encodeText(message.getMessage());
+			return new ByteBuffer[] {ByteBuffer.wrap(encodeHead(message, payload.length)), ByteBuffer.wrap(payload)};
+		}
+		ByteBuffer[] segments = encoded.toBuffers();
+		ByteBuffer[] frame = new ByteBuffer[segments.length + 1];
+		frame[0] = ByteBuffer.wrap(encodeHead(message, encoded.length()));
+		System.arraycopy(segments, 0, frame, 1, segments.length);
+		return frame;
+	}
+	
+	@Override
+	public Message read() throws IOException {
+		int length = checkLength(in.readInt());
+		byte[] frame = new byte[length];
+		in.readFully(frame);
+		return decode(ByteBuffer.wrap(frame), length);
+	}
+	
+	@Override
+	public Message read(ByteBuffer buffer) throws IOException {
+		if ( ! helloRead) {
+			if (buffer.remaining() < Protocol.HELLO.length) return null;
+			byte[] hello = new byte[Protocol.HELLO.length];
+			buffer.get(hello);
+			Protocol.checkHello(hello);
+			helloRead = true;
+		}
+		if (buffer.remaining() < LENGTH_BYTES) return null;
+		int length = checkLength(buffer.getInt(buffer.position()));
+		if (buffer.remaining() < LENGTH_BYTES + length) return null;
+		buffer.position(buffer.position() + LENGTH_BYTES);
+		return decode(buffer, length);
+	}
+	
+	/**
+	 * @return Text encoded in UTF-8.
+	 * */
+	private static byte[] encodeText(String text) {
+		return text == null ? NO_BYTES : text.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @param payloadLength - length of the encoded text.
+	 * @return Beginning of the frame: everything except the text.
+	 * */
+	private static byte[] encodeHead(Message message, int payloadLength) {
+		boolean hasText = message.getEncodedText() != null || message.getMessage() != null;
+		boolean hasSequence = message.getSequence() != Message.NO_SEQUENCE;
+		boolean hasCorrelation = message.getCorrelationId() != Message.NO_CORRELATION;
+		int fields = FIXED_BYTES + (hasSequence ? SEQUENCE_BYTES : 0) + (hasCorrelation ? CORRELATION_BYTES : 0);
+		ByteBuffer frame = ByteBuffer.allocate(LENGTH_BYTES + fields);
+		frame.putInt(fields + payloadLength);
+		frame.put((byte) message.getHEADER());
+		frame.put((byte) ((hasText ? HAS_TEXT : 0) | (hasSequence ? HAS_SEQUENCE : 0) | (hasCorrelation ? HAS_CORRELATION : 0)));
+		if (hasSequence)
+			frame.putLong(message.getSequence());
+		if (hasCorrelation)
+			frame.putInt(message.getCorrelationId());
+		return frame.array();
+	}
+	
+	private static Message decode(ByteBuffer frame, int length) throws StreamCorruptedException {
+		int header = frame.get() & 0xFF;
+		byte flags = frame.get();
+		int payloadLength = length - FIXED_BYTES;
+		long sequence = Message.NO_SEQUENCE;
+		if ((flags & HAS_SEQUENCE) != 0) {
+			payloadLength -= SEQUENCE_BYTES;
+			if (payloadLength < 0)
+				throw new StreamCorruptedException("Frame too short for the sequence.");
+			sequence = frame.getLong();
+		}
+		int correlationId = Message.NO_CORRELATION;
+		if ((flags & HAS_CORRELATION) != 0) {
+			payloadLength -= CORRELATION_BYTES;
+			if (payloadLength < 0)
+				throw new StreamCorruptedException("Frame too short for the correlation id.");
+			correlationId = frame.getInt();
+		}
+		String text = null;
+		if ((flags & HAS_TEXT) != 0) {
+			if (frame.hasArray()) {
+				text = new String(frame.array(), frame.arrayOffset() + frame.position(), payloadLength, StandardCharsets.UTF_8);
+			} else {
+				byte[] payload = new byte[payloadLength];
+				frame.duplicate().get(payload);
+				text = new String(payload, StandardCharsets.UTF_8);
+			}
+		}
+		frame.position(frame.position() + payloadLength);
+		return new Message(text, header, sequence, correlationId);
+	}
+	
+	private static int checkLength(int length) throws StreamCorruptedException {
+		if (length < FIXED_BYTES || length > MAX_FRAME_LENGTH)
+			throw new StreamCorruptedException("Invalid frame length: " + length);
+		return length;
+	}
+}
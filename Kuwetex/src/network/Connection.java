@@ -1,28 +1,66 @@
 package network;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /**
  * Class has essential methods that provides connection with the server (Litter Box)
  * and it is responsible for sending and receiving messages. 
+ * Requests are tagged with a correlation id and many of them can wait for the response at once.
+ * One reader thread receives all the messages and completes the request with the same id.
+ * Old servers do not send the ids back, but they answer in order, so their responses
+ * complete the oldest waiting request.
  * */
 public class Connection {
+	// time for the server to answer the binary protocol hello
+	private static final int HANDSHAKE_TIMEOUT = 3_000;
+	
 	private Message message;
 	private boolean isConnected = false;
 	
 	private Socket socket = null;
-	private ObjectOutputStream out = null;
-	private ObjectInputStream in = null;
+	private MessageCodec codec = null;
+	
+	private final AtomicInteger correlationIds = new AtomicInteger(Message.NO_CORRELATION);
+	private final Map<Integer, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+	private final Queue<Integer> pendingOrder = new ConcurrentLinkedQueue<>(); // for old servers
+	private final Map<Integer, ChunkListener> streams = new ConcurrentHashMap<>();
+	private final BlockingQueue<Message> pushed = new LinkedBlockingQueue<>(); // events after SUBSCRIBE
+	private static final Message CLOSED = new Message(null, Message.LOG_OUT); // end of the pushed messages
+	private IOException closed = null; // why the reader has stopped, guarded by this
+	
+	/**
+	 * Receives the parts of a response that comes in chunks (for example GET_RAPORT_STREAM).
+	 * */
+	public interface ChunkListener {
+		/**
+		 * Called by the reader thread of the connection, in the order of the chunks.
+		 * Next messages are not read until it returns.
+		 * @param chunk - one part of the response.
+		 * */
+		public abstract void chunkReceived(Message chunk);
+	}
 	
 	public Connection() {		
 	}
 	
 	/**
 	 * If panel is disconnected this method attempts to connect to the LitterBox (server).
+	 * The binary protocol is tried first. Old servers do not answer it, then the connection
+	 * is opened again with Java serialization.
 	 * @param msg - text that you want to send.
 	 * @return - message from the server (response message).
 	 * @throws - UnknownHostException, IOException
@@ -31,9 +69,14 @@ public class Connection {
 		String msgBack = null;
 		if (isConnected) return null;
 		
-		socket = new Socket(Message.ADRESS, Message.PORT);
-		out = new ObjectOutputStream(socket.getOutputStream());
-		in = new ObjectInputStream(socket.getInputStream());
+		try {
+			open(new BinaryMessageCodec());
+		} catch (UnknownHostException e) {
+			throw e;
+		} catch (IOException e) {
+			System.out.println("Server does not support binary protocol. Using serialization.");
+			open(new SerializedMessageCodec());
+		}
 		
 		msgBack = sendNewMessage(msg, Message.LOG_ME_IN);
 		isConnected = true;
@@ -41,6 +84,37 @@ public class Connection {
 		return msgBack;
 	}
 	
+	/**
+	 * Opens the socket, exchanges the stream headers and starts the reader thread.
+	 * @param c - codec that will be used for the connection.
+	 * @throws IOException
+	 * */
+	private void open(MessageCodec c) throws IOException {
+		socket = new Socket(Message.ADRESS, Message.PORT);
+		try {
+			socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+			c.writeHeader(new BufferedOutputStream(socket.getOutputStream()));
+			c.readHeader(new BufferedInputStream(socket.getInputStream()));
+			socket.setSoTimeout(0);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		synchronized (this) {
+			codec = c;
+			closed = null;
+		}
+		pushed.clear();
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readResponses();
+			}
+		}, "kuwetex-connection");
+		reader.setDaemon(true);
+		reader.start();
+	}
+	
 	/**
 	 * Sends new message to the server (Litter Box), then waits for response and returns
 	 * message for the server.
@@ -50,23 +124,172 @@ public class Connection {
 	 * @return Response (text message) for the server.
 	 * */
 	public String sendNewMessage (String text, int header) {
-		message = new Message(text, header);		
+		Message response = sendNewMessage(new Message(text, header));
+		if (response == null)
+			return "Error. Exeption";
+		if (response.getHEADER() == Message.BUSY)
+			return response.getMessage(); // "Error. " and the reason
+		if (response.getHEADER() != header)
+			return "Error. Headers do not match.";
+		return response.getMessage();
+	}
+	
+	/**
+	 * Sends new message to the server (Litter Box), then waits for response.
+	 * @param msg - the message, use one of static final headers for Message class.
+	 * @return Response message of the server or null if exception occurred.
+	 * */
+	public Message sendNewMessage (Message msg) {
 		try {
-			out.writeObject(message);
-			out.flush();
-			
-			Message response = (Message) in.readObject();
-			
-			if (response.getHEADER() == message.getHEADER()) {
-				return response.getMessage();
-			} else {
-				return "Error. Headers do not match.";
+			return sendAsync(msg).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Sends new message to the server (Litter Box) without waiting for the response.
+	 * The message gets a new correlation id.
+	 * @param msg - the message, use one of static final headers for Message class.
+	 * @return Future of the response. It fails if the message could not be sent or the connection was closed.
+	 * */
+	public CompletableFuture<Message> sendAsync (Message msg) {
+		return send(msg, nextCorrelationId());
+	}
+	
+	/**
+	 * Writes the message and registers its future. If the reader has stopped already, nobody would
+	 * complete the future, so it fails at once.
+	 * */
+	private CompletableFuture<Message> send (Message msg, int id) {
+		CompletableFuture<Message> response = new CompletableFuture<>();
+		synchronized (this) { // order of the ids is the order on the wire
+			if (closed != null) {
+				response.completeExceptionally(closed);
+				return response;
 			}
-			
-		} catch (IOException | ClassNotFoundException e) {
-			e.printStackTrace();
-			return "Error. Exeption";
+			pending.put(id, response);
+			pendingOrder.add(id);
+			message = new Message(msg.getMessage(), msg.getHEADER(), msg.getSequence(), id);
+			try {
+				codec.write(message);
+			} catch (IOException e) {
+				pendingOrder.remove(id);
+				pending.remove(id);
+				response.completeExceptionally(e);
+			}
+		}
+		return response;
+	}
+	
+	/**
+	 * Sends a request whose response comes in chunks, followed by the final message.
+	 * @param msg - the message, for example GET_RAPORT_STREAM.
+	 * @param listener - receives the chunks.
+	 * @return Future of the final message (for example RAPORT_END).
+	 * */
+	public CompletableFuture<Message> sendStreaming (Message msg, final ChunkListener listener) {
+		final int id = nextCorrelationId();
+		streams.put(id, listener);
+		CompletableFuture<Message> response = send(msg, id);
+		response.whenComplete(new BiConsumer<Message, Throwable>() {
+			@Override
+			public void accept(Message result, Throwable error) {
+				streams.remove(id);
+			}
+		});
+		return response;
+	}
+	
+	private int nextCorrelationId() {
+		int id;
+		do {
+			id = correlationIds.incrementAndGet();
+		} while (id == Message.NO_CORRELATION);
+		return id;
+	}
+	
+	/**
+	 * Loop of the reader thread. Completes the requests and queues the pushed events.
+	 * */
+	private void readResponses() {
+		MessageCodec c = codec;
+		IOException failure;
+		try {
+			while (true)
+			{
+				Message response = c.read();
+				if (isEvent(response)) {
+					pushed.add(response);
+					continue;
+				}
+				if (response.getHEADER() == Message.RAPORT_CHUNK) {
+					ChunkListener listener = streams.get(response.getCorrelationId());
+					if (listener != null)
+						listener.chunkReceived(response);
+					continue;
+				}
+				Integer id = response.getCorrelationId() != Message.NO_CORRELATION
+						? Integer.valueOf(response.getCorrelationId()) : pendingOrder.peek();
+				if (id == null) continue; // nobody waits for it
+				pendingOrder.remove(id);
+				CompletableFuture<Message> request = pending.remove(id);
+				if (request != null)
+					request.complete(response);
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (ClassNotFoundException e) {
+			failure = new IOException(e);
+		}
+		synchronized (this) {
+			if (c != codec) return; // connection was opened again, its requests are not ours
+			closed = failure; // new requests fail at once
+		}
+		// connection is closed, nobody will answer the waiting requests
+		for (Integer id : pending.keySet()) {
+			CompletableFuture<Message> request = pending.remove(id);
+			if (request != null)
+				request.completeExceptionally(failure);
 		}
+		pendingOrder.clear();
+		pushed.add(CLOSED);
+	}
+	
+	private static boolean isEvent(Message m) {
+		return m.getHEADER() == Message.VISIT_EVENT || m.getHEADER() == Message.ILLNESS_EVENT
+				|| m.getHEADER() == Message.CLEANING_EVENT;
+	}
+	
+	/**
+	 * Waits for the next message that the server sends without a request (after SUBSCRIBE).
+	 * @return The message or null if the connection was closed.
+	 * */
+	public Message receive() {
+		try {
+			Message event = pushed.take();
+			if (event == CLOSED) {
+				pushed.add(CLOSED); // for the next call
+				return null;
+			}
+			return event;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
+	/**
+	 * Servers that do not know the binary protocol do not know newer headers either
+	 * (for example GET_RAPORT_SINCE).
+	 * @return True if the server speaks only the old serialized protocol.
+	 * */
+	public boolean isLegacyServer() {
+		return codec instanceof SerializedMessageCodec;
 	}
 	
 	/**
@@ -76,10 +299,11 @@ public class Connection {
 	@SuppressWarnings("finally")
 	public boolean closeConnection() {
 		boolean tof = false;
-		message = new Message("client has logged out", Message.LOG_OUT);		
 		try {
-			out.writeObject(message);
-			out.flush();
+			synchronized (this) {
+				message = new Message("client has logged out", Message.LOG_OUT);
+				codec.write(message);
+			}
 			
 			if (socket != null && !socket.isClosed())
 				socket.close();			
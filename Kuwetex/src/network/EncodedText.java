@@ -0,0 +1,69 @@
+package network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Long text already encoded in UTF-8, split into segments. Segments are never changed, so one
+ * EncodedText (or its segments, shared by the next versions of the text) can be sent to many
+ * connections at once without encoding or copying it for every one of them.
+ * Every segment ends at a character boundary.
+ * */
+public final class EncodedText {
+	private final byte[][] SEGMENTS;
+	private final int LENGTH; // bytes
+
+	/**
+	 * Constructor. The segments are not copied, they must not be changed later.
+	 * @param segments - UTF-8 bytes of the text, in order.
+	 * */
+	public EncodedText(byte[][] segments) {
+		long length = 0;
+		for (byte[] segment : segments)
+			length += segment.length;
+		if (length > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Text is too long: " + length + " bytes");
+		SEGMENTS = segments;
+		LENGTH = (int) length;
+	}
+
+	/**
+	 * @return Length of the encoded text in bytes.
+	 * */
+	public int length() {
+		return LENGTH;
+	}
+
+	/**
+	 * Writes all the segments, without flushing.
+	 * @param out - the stream.
+	 * @throws IOException
+	 * */
+	public void writeTo(OutputStream out) throws IOException {
+		for (byte[] segment : SEGMENTS)
+			out.write(segment);
+	}
+
+	/**
+	 * @return New buffers over the segments, one per segment. The bytes are not copied.
+	 * */
+	public ByteBuffer[] toBuffers() {
+		ByteBuffer[] buffers = new ByteBuffer[SEGMENTS.length];
+		for (int i=0; i<SEGMENTS.length; i++)
+			buffers[i] = ByteBuffer.wrap(SEGMENTS[i]);
+		return buffers;
+	}
+
+	/**
+	 * @return Decoded text. It is decoded on every call.
+	 * */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder(LENGTH);
+		for (byte[] segment : SEGMENTS)
+			builder.append(new String(segment, StandardCharsets.UTF_8));
+		return builder.toString();
+	}
+}
@@ -5,8 +5,9 @@ import java.io.Serializable;
 /**
  * Object of this class is used as a information sent between client and server.
  * */
-@SuppressWarnings("serial")
 public class Message implements Serializable {
+	// value computed for the first version, so old panels can still read new messages
+	private static final long serialVersionUID = 474803232292668964L;
 	
 	/* 
 	 * For socket connection.
@@ -21,13 +22,85 @@ public class Message implements Serializable {
 	public static final int GET_RAPORT = 2;
 	public static final int FORCE_CLEANING = 3;
 	public static final int GET_RECOMMENDATIONS = 4;
+	public static final int GET_RAPORT_SINCE = 5; // sequence = number of records the client already has
+	public static final int SUBSCRIBE = 6; // server pushes the events below until the client logs out
+	public static final int VISIT_EVENT = 7; // sequence = number of the visit + 1
+	public static final int ILLNESS_EVENT = 8;
+	public static final int CLEANING_EVENT = 9;
+	public static final int GET_RAPORT_STREAM = 10; // like GET_RAPORT_SINCE, but the records come in chunks
+	public static final int RAPORT_CHUNK = 11; // sequence = number of the first record in the chunk
+	public static final int RAPORT_END = 12; // sequence = number of records the client has after the report
+	public static final int QUERY_VISITS = 13; // text = Query, response sequence = number of visits found
+	public static final int QUERY_ILLNESSES = 14; // text = Query, response like QUERY_VISITS
+	public static final int GET_STATISTICS = 15; // text = name of the cat or null for all cats
+	public static final int GET_METRICS = 16; // text = metrics of the server, one per line
+	public static final int BUSY = 17; // response of the server over capacity, the request can be sent again later
+	
+	private static final String[] HEADER_NAMES = {"LOG_OUT", "LOG_ME_IN", "GET_RAPORT", "FORCE_CLEANING",
+			"GET_RECOMMENDATIONS", "GET_RAPORT_SINCE", "SUBSCRIBE", "VISIT_EVENT", "ILLNESS_EVENT", "CLEANING_EVENT",
+			"GET_RAPORT_STREAM", "RAPORT_CHUNK", "RAPORT_END", "QUERY_VISITS", "QUERY_ILLNESSES", "GET_STATISTICS",
+			"GET_METRICS", "BUSY"};
+	
+	public static final long NO_SEQUENCE = -1;
+	public static final int NO_CORRELATION = 0; // also read from peers that do not know correlation ids
 	
 	private final int HEADER;
 	private final String MESSAGE_TEXT;
+	private final long SEQUENCE;
+	private final int CORRELATION_ID;
+	private final transient EncodedText ENCODED_TEXT; // instead of MESSAGE_TEXT for long shared texts
+	
+	/**
+	 * @param header - one of static final headers.
+	 * @return Name of the header, for example "GET_RAPORT". Unknown headers are named by their number.
+	 * */
+	public static String headerName(int header) {
+		return header >= 0 && header < HEADER_NAMES.length ? HEADER_NAMES[header] : "HEADER_" + header;
+	}
 	
 	public Message (String msg, int header) {
-		MESSAGE_TEXT = msg; HEADER = header;
-	}	
+		this(msg, header, NO_SEQUENCE);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param msg - text of the message.
+	 * @param header - one of static final headers.
+	 * @param sequence - position in the history of the server. Used by incremental reports.
+	 * */
+	public Message (String msg, int header, long sequence) {
+		this(msg, header, sequence, NO_CORRELATION);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param msg - text of the message.
+	 * @param header - one of static final headers.
+	 * @param sequence - position in the history of the server. Used by incremental reports.
+	 * @param correlationId - id of the request, the response has the same one. Many requests
+	 * can be sent on one connection before the responses come.
+	 * */
+	public Message (String msg, int header, long sequence, int correlationId) {
+		MESSAGE_TEXT = msg; HEADER = header; SEQUENCE = sequence; CORRELATION_ID = correlationId;
+		ENCODED_TEXT = null;
+	}
+	
+	private Message (int header, EncodedText text, long sequence, int correlationId) {
+		MESSAGE_TEXT = null; HEADER = header; SEQUENCE = sequence; CORRELATION_ID = correlationId;
+		ENCODED_TEXT = text;
+	}
+	
+	/**
+	 * Message with a long text that is already encoded, for example a report sent to many clients.
+	 * The binary codec sends its bytes as they are. The text is decoded only if getMessage() is called.
+	 * @param text - encoded text of the message.
+	 * @param header - one of static final headers.
+	 * @param sequence - position in the history of the server or NO_SEQUENCE.
+	 * @param correlationId - id of the request or NO_CORRELATION.
+	 * */
+	public static Message encoded (EncodedText text, int header, long sequence, int correlationId) {
+		return new Message(header, text, sequence, correlationId);
+	}
 
 	/**
 	 * @return the header
@@ -40,7 +113,28 @@ public class Message implements Serializable {
 	 * @return the message
 	 */
 	public String getMessage() {
-		return MESSAGE_TEXT;
+		return ENCODED_TEXT == null ? MESSAGE_TEXT : ENCODED_TEXT.toString();
+	}
+	
+	/**
+	 * @return the encoded text or null if the message was created with a String
+	 */
+	public EncodedText getEncodedText() {
+		return ENCODED_TEXT;
+	}
+
+	/**
+	 * @return the sequence or NO_SEQUENCE
+	 */
+	public long getSequence() {
+		return SEQUENCE;
+	}
+	
+	/**
+	 * @return the correlation id or NO_CORRELATION
+	 */
+	public int getCorrelationId() {
+		return CORRELATION_ID;
 	}
 
 }
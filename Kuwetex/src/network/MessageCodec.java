@@ -0,0 +1,52 @@
+package network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns Message objects into bytes and back. One instance serves one connection,
+ * because some formats (Java serialization) keep state for the whole stream.
+ * Use Protocol to choose the codec.
+ * */
+public interface MessageCodec {
+	/**
+	 * Writes the header of the stream and binds the codec to the output stream.
+	 * It must be called before the first message is written.
+	 * @param out - output stream of the connection.
+	 * @throws IOException
+	 * */
+	public abstract void writeHeader(OutputStream out) throws IOException;
+	
+	/**
+	 * Reads and checks the header sent by the other side and binds the codec to the input stream.
+	 * It must be called before the first message is read.
+	 * @param in - input stream of the connection.
+	 * @throws IOException if the header is wrong or the stream is closed.
+	 * */
+	public abstract void readHeader(InputStream in) throws IOException;
+	
+	/**
+	 * Writes the message to the bound output stream and flushes it.
+	 * @param message - the message that will be sent.
+	 * @throws IOException
+	 * */
+	public abstract void write(Message message) throws IOException;
+	
+	/**
+	 * Reads next message from the bound input stream. Blocks until the message arrives.
+	 * @return The message.
+	 * @throws IOException, ClassNotFoundException
+	 * */
+	public abstract Message read() throws IOException, ClassNotFoundException;
+	
+	/**
+	 * Reads next message from the bytes that were received so far (non-blocking connections).
+	 * The header of the stream is read here as well, readHeader is not used then.
+	 * @param buffer - buffer in read mode. Bytes of the decoded message are consumed.
+	 * @return The message or null if the buffer does not hold a complete message yet.
+	 * @throws IOException, ClassNotFoundException
+	 * */
+	public abstract Message read(ByteBuffer buffer) throws IOException, ClassNotFoundException;
+}
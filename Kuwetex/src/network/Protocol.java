@@ -0,0 +1,71 @@
+package network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Chooses the codec of the connection.
+ * Client that knows the binary protocol starts with HELLO and the server answers with HELLO.
+ * Old panels start with the Java serialization stream header, so the server can tell them apart
+ * by the first two bytes. If the server does not answer HELLO, the client connects again
+ * with the serialized format.
+ * */
+public class Protocol {
+	public static final byte[] HELLO = {'K', 'W', 'X', 1}; // last byte is the version
+	
+	private static final int DETECT_BYTES = 2;
+	
+	private Protocol() {
+	}
+	
+	/**
+	 * Detects the codec used by the client. Nothing is consumed from the stream.
+	 * @param in - input stream of the connection. It has to support mark.
+	 * @return New codec for the connection.
+	 * @throws IOException if the stream is closed or starts with unknown bytes.
+	 * */
+	public static MessageCodec detect(InputStream in) throws IOException {
+		byte[] first = new byte[DETECT_BYTES];
+		in.mark(DETECT_BYTES);
+		int n = 0;
+		while (n < DETECT_BYTES) {
+			int r = in.read(first, n, DETECT_BYTES - n);
+			if (r < 0) throw new StreamCorruptedException("Connection closed before the header.");
+			n += r;
+		}
+		in.reset();
+		return codecFor(first[0], first[1]);
+	}
+	
+	/**
+	 * Detects the codec used by the client. Nothing is consumed from the buffer.
+	 * @param buffer - received bytes in read mode.
+	 * @return New codec for the connection or null if not enough bytes were received yet.
+	 * @throws StreamCorruptedException if the stream starts with unknown bytes.
+	 * */
+	public static MessageCodec detect(ByteBuffer buffer) throws StreamCorruptedException {
+		if (buffer.remaining() < DETECT_BYTES) return null;
+		return codecFor(buffer.get(buffer.position()), buffer.get(buffer.position() + 1));
+	}
+	
+	/**
+	 * @throws StreamCorruptedException if the bytes are not HELLO.
+	 * */
+	static void checkHello(byte[] hello) throws StreamCorruptedException {
+		if ( ! Arrays.equals(hello, HELLO))
+			throw new StreamCorruptedException("Unknown protocol: " + Arrays.toString(hello));
+	}
+	
+	private static MessageCodec codecFor(byte first, byte second) throws StreamCorruptedException {
+		if (first == HELLO[0] && second == HELLO[1])
+			return new BinaryMessageCodec();
+		short magic = (short) (((first & 0xFF) << 8) | (second & 0xFF));
+		if (magic == ObjectStreamConstants.STREAM_MAGIC)
+			return new SerializedMessageCodec();
+		throw new StreamCorruptedException("Unknown protocol.");
+	}
+}
@@ -0,0 +1,92 @@
+package network;
+
+/**
+ * Filter of the history, sent as the text of QUERY_VISITS and QUERY_ILLNESSES messages.
+ * Text of the query has three lines: name of the cat (empty = all cats),
+ * beginning and end of the time range (epoch ms).
+ * */
+public class Query {
+	public static final long ANY_TIME_FROM = Long.MIN_VALUE;
+	public static final long ANY_TIME_TO = Long.MAX_VALUE;
+
+	private final String CAT_NAME;
+	private final long FROM;
+	private final long TO;
+
+	/**
+	 * Constructor.
+	 * @param cat - name of the cat or null for all cats.
+	 * @param from - beginning of the time range (epoch ms, included) or ANY_TIME_FROM.
+	 * @param to - end of the time range (epoch ms, not included) or ANY_TIME_TO.
+	 * */
+	public Query (String cat, long from, long to) {
+		CAT_NAME = (cat == null || cat.isEmpty()) ? null : cat; FROM = from; TO = to;
+	}
+
+	/**
+	 * @param cat - name of the cat.
+	 * @return Query for all the records of the cat.
+	 * */
+	public static Query forCat(String cat) {
+		return new Query(cat, ANY_TIME_FROM, ANY_TIME_TO);
+	}
+
+	/**
+	 * Reads the query from the text of a message.
+	 * @param text - text made by toText().
+	 * @return The query.
+	 * @throws IllegalArgumentException if the text is not a query.
+	 * */
+	public static Query fromText(String text) {
+		if (text == null)
+			throw new IllegalArgumentException("Empty query.");
+		String[] lines = text.split("\n", -1);
+		if (lines.length != 3)
+			throw new IllegalArgumentException("Query should have 3 lines: " + text);
+		try {
+			return new Query(lines[0], Long.parseLong(lines[1]), Long.parseLong(lines[2]));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Wrong time range: " + text, e);
+		}
+	}
+
+	/**
+	 * @return Text of the query for the message.
+	 * */
+	public String toText() {
+		return (CAT_NAME == null ? "" : CAT_NAME) + "\n" + FROM + "\n" + TO;
+	}
+
+	/**
+	 * @return Name of the cat or null for all cats.
+	 * */
+	public String getCatName() {
+		return CAT_NAME;
+	}
+
+	/**
+	 * @return Beginning of the time range (epoch ms).
+	 * */
+	public long getFrom() {
+		return FROM;
+	}
+
+	/**
+	 * @return End of the time range (epoch ms), not included.
+	 * */
+	public long getTo() {
+		return TO;
+	}
+
+	/**
+	 * @return True if the query has a time range.
+	 * */
+	public boolean hasTimeRange() {
+		return FROM != ANY_TIME_FROM || TO != ANY_TIME_TO;
+	}
+
+	@Override
+	public String toString() {
+		return (CAT_NAME == null ? "all cats" : CAT_NAME) + (hasTimeRange() ? ", " + FROM + " - " + TO : "");
+	}
+}
@@ -0,0 +1,55 @@
+package network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Legacy format: Message objects in a Java serialization stream.
+ * It is kept for panels that do not know the binary protocol.
+ * */
+public class SerializedMessageCodec implements MessageCodec {
+	private ObjectOutputStream out = null;
+	private ObjectInputStream in = null;
+	private SerializedStreamDecoder decoder = null;
+	
+	@Override
+	public void writeHeader(OutputStream out) throws IOException {
+		this.out = new ObjectOutputStream(out);
+		this.out.flush();
+	}
+	
+	@Override
+	public void readHeader(InputStream in) throws IOException {
+		this.in = new ObjectInputStream(in);
+	}
+	
+	/**
+	 * Writes the message. The stream is reset afterwards,
+	 * so the stream does not keep references to all messages that were ever sent.
+	 * Encoded text is not serialized, such a message is sent with its decoded text.
+	 * */
+	@Override
+	public void write(Message message) throws IOException {
+		if (message.getEncodedText() != null)
+			message = new Message(message.getMessage(), message.getHEADER(), message.getSequence(), message.getCorrelationId());
+		out.writeObject(message);
+		out.reset();
+		out.flush();
+	}
+	
+	@Override
+	public Message read() throws IOException, ClassNotFoundException {
+		return (Message) in.readObject();
+	}
+	
+	@Override
+	public Message read(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+		if (decoder == null)
+			decoder = new SerializedStreamDecoder();
+		return decoder.next(buffer);
+	}
+}
@@ -0,0 +1,224 @@
+package network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads Message objects from a Java serialization stream that arrives in pieces
+ * (non-blocking socket channel).
+ * ObjectInputStream can not be stopped in the middle of an object, so every object is scanned
+ * first and it is given to the ObjectInputStream only when all of its bytes are in the buffer.
+ * The scanner understands the part of the stream format that is produced by ObjectOutputStream
+ * for plain serializable classes (objects, class descriptors, strings, references and resets).
+ * */
+class SerializedStreamDecoder implements ObjectStreamConstants {
+	private static final int STREAM_HEADER_LENGTH = 4; // magic + version
+	private static final Object HANDLE = new Object(); // string or object handle
+
+	private ObjectInputStream in = null;
+	private ByteBuffer source;
+	// handles seen by the scanner, class descriptors are stored as ClassLayout
+	private List<Object> handles = new ArrayList<>();
+
+	/**
+	 * Layout of the serialized fields of one class.
+	 * */
+	private static class ClassLayout {
+		int primitiveBytes = 0;
+		int objectFields = 0;
+		boolean writeMethod = false;
+		ClassLayout superLayout = null;
+	}
+
+	/**
+	 * Reads next message from the buffer.
+	 * @param buffer - buffer in read mode. Bytes of the decoded message are consumed.
+	 * @return Next message or null if the buffer does not hold a complete message yet.
+	 * @throws IOException, ClassNotFoundException
+	 * */
+	Message next(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+		source = buffer;
+		if (in == null) {
+			if (buffer.remaining() < STREAM_HEADER_LENGTH) return null;
+			in = new ObjectInputStream(new SourceInputStream());
+		}
+		if ( ! scan(buffer)) return null;
+
+		Object object = in.readObject();
+		if ( ! (object instanceof Message))
+			throw new StreamCorruptedException("Not a message: " + object);
+		return (Message) object;
+	}
+
+	/**
+	 * Checks whether the buffer holds a complete object. Nothing is consumed.
+	 * @return True if whole object is available.
+	 * */
+	private boolean scan(ByteBuffer buffer) throws StreamCorruptedException {
+		List<Object> saved = handles;
+		int mark = handles.size();
+		try {
+			readContent(buffer.duplicate());
+			return true;
+		} catch (BufferUnderflowException e) {
+			// not complete yet, forget handles assigned during this attempt
+			handles = saved;
+			handles.subList(mark, handles.size()).clear();
+			return false;
+		}
+	}
+
+	private void readContent(ByteBuffer b) throws StreamCorruptedException {
+		byte tc = b.get();
+		while (tc == TC_RESET) {
+			handles = new ArrayList<>();
+			tc = b.get();
+		}
+		switch (tc) {
+		case TC_NULL:
+			break;
+		case TC_REFERENCE:
+			handle(b.getInt());
+			break;
+		case TC_STRING:
+			skip(b, b.getShort() & 0xFFFF);
+			handles.add(HANDLE);
+			break;
+		case TC_LONGSTRING:
+			skip(b, b.getLong());
+			handles.add(HANDLE);
+			break;
+		case TC_OBJECT: {
+			ClassLayout layout = readClassDesc(b);
+			if (layout == null)
+				throw new StreamCorruptedException("Object without class descriptor.");
+			handles.add(HANDLE);
+			readClassData(b, layout);
+			break;
+		}
+		default:
+			throw new StreamCorruptedException("Unsupported type code: " + tc);
+		}
+	}
+
+	private ClassLayout readClassDesc(ByteBuffer b) throws StreamCorruptedException {
+		byte tc = b.get();
+		switch (tc) {
+		case TC_NULL:
+			return null;
+		case TC_REFERENCE: {
+			Object o = handle(b.getInt());
+			if ( ! (o instanceof ClassLayout))
+				throw new StreamCorruptedException("Reference is not a class descriptor.");
+			return (ClassLayout) o;
+		}
+		case TC_CLASSDESC: {
+			skip(b, b.getShort() & 0xFFFF); // class name
+			b.getLong(); // serialVersionUID
+			ClassLayout layout = new ClassLayout();
+			handles.add(layout);
+			byte flags = b.get();
+			if ((flags & SC_EXTERNALIZABLE) != 0)
+				throw new StreamCorruptedException("Externalizable classes are not supported.");
+			layout.writeMethod = (flags & SC_WRITE_METHOD) != 0;
+			int fields = b.getShort();
+			for (int i=0; i<fields; i++) {
+				char type = (char) b.get();
+				skip(b, b.getShort() & 0xFFFF); // field name
+				if (type == 'L' || type == '[') {
+					readContent(b); // type name of the field
+					layout.objectFields++;
+				} else {
+					layout.primitiveBytes += primitiveSize(type);
+				}
+			}
+			readAnnotation(b);
+			layout.superLayout = readClassDesc(b);
+			return layout;
+		}
+		default:
+			throw new StreamCorruptedException("Unsupported class descriptor: " + tc);
+		}
+	}
+
+	private void readClassData(ByteBuffer b, ClassLayout layout) throws StreamCorruptedException {
+		if (layout.superLayout != null)
+			readClassData(b, layout.superLayout);
+		skip(b, layout.primitiveBytes);
+		for (int i=0; i<layout.objectFields; i++)
+			readContent(b);
+		if (layout.writeMethod)
+			readAnnotation(b);
+	}
+
+	/**
+	 * Skips block data and objects until the end of block data marker.
+	 * */
+	private void readAnnotation(ByteBuffer b) throws StreamCorruptedException {
+		while (true)
+		{
+			byte tc = b.get();
+			if (tc == TC_ENDBLOCKDATA) {
+				return;
+			} else if (tc == TC_BLOCKDATA) {
+				skip(b, b.get() & 0xFF);
+			} else if (tc == TC_BLOCKDATALONG) {
+				skip(b, b.getInt());
+			} else {
+				b.position(b.position() - 1);
+				readContent(b);
+			}
+		}
+	}
+
+	private Object handle(int wireHandle) throws StreamCorruptedException {
+		int h = wireHandle - baseWireHandle;
+		if (h < 0 || h >= handles.size())
+			throw new StreamCorruptedException("Invalid handle: " + wireHandle);
+		return handles.get(h);
+	}
+
+	private static void skip(ByteBuffer b, long n) throws StreamCorruptedException {
+		if (n < 0)
+			throw new StreamCorruptedException("Negative length: " + n);
+		if (n > b.remaining())
+			throw new BufferUnderflowException();
+		b.position(b.position() + (int) n);
+	}
+
+	private static int primitiveSize(char type) throws StreamCorruptedException {
+		switch (type) {
+		case 'B': case 'Z': return 1;
+		case 'C': case 'S': return 2;
+		case 'I': case 'F': return 4;
+		case 'J': case 'D': return 8;
+		default: throw new StreamCorruptedException("Unknown field type: " + type);
+		}
+	}
+
+	/**
+	 * Gives bytes of the current buffer to the ObjectInputStream.
+	 * */
+	private class SourceInputStream extends InputStream {
+		@Override
+		public int read() {
+			return source.hasRemaining() ? source.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			int n = Math.min(len, source.remaining());
+			if (n == 0) return -1;
+			source.get(b, off, n);
+			return n;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package network;
+
+import java.io.IOException;
+import java.util.Calendar;
+
+/**
+ * Live feed of the server: new visits, illnesses and cleanings are pushed as they happen,
+ * so the report does not have to be requested again and again.
+ * The subscription has its own connection, the panel's connection keeps working as before.
+ * */
+public class Subscription implements Runnable {
+	
+	/**
+	 * Receives the events. Methods are called by the thread of the subscription.
+	 * */
+	public interface Listener {
+		/**
+		 * @param event - VISIT_EVENT, ILLNESS_EVENT or CLEANING_EVENT message.
+		 * */
+		public abstract void eventReceived(Message event);
+		
+		/**
+		 * Called when the connection is closed.
+		 * */
+		public abstract void subscriptionClosed();
+	}
+	
+	private final Connection connection = new Connection();
+	private final Listener listener;
+	
+	/**
+	 * Constructor.
+	 * @param listener - receives the events.
+	 * */
+	public Subscription(Listener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * Connects to the server, subscribes and starts the thread that receives the events.
+	 * @return False if the server is too old to push events.
+	 * @throws IOException
+	 * */
+	public boolean start() throws IOException {
+		connection.connectToServer("Subscription: " + Calendar.getInstance().getTime().toString());
+		if (connection.isLegacyServer()) {
+			connection.closeConnection();
+			return false;
+		}
+		Message response = connection.sendNewMessage(new Message(null, Message.SUBSCRIBE));
+		if (response == null || response.getHEADER() != Message.SUBSCRIBE) {
+			connection.closeConnection();
+			throw new IOException("Server did not accept the subscription.");
+		}
+		Thread thread = new Thread(this, "kuwetex-subscription");
+		thread.setDaemon(true);
+		thread.start();
+		return true;
+	}
+	
+	@Override
+	public void run() {
+		Message event;
+		while ((event = connection.receive()) != null)
+			listener.eventReceived(event);
+		listener.subscriptionClosed();
+	}
+	
+	/**
+	 * Stops the subscription. The thread ends when the connection is closed.
+	 * */
+	public void close() {
+		connection.closeConnection();
+	}
+}
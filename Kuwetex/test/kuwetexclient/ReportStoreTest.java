@@ -0,0 +1,119 @@
+package kuwetexclient;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReportStoreTest {
+	private File directory, report, index;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("kuwetex-reports").toFile();
+		report = new File(directory, "report.txt");
+		index = new File(directory, "report.txt.idx");
+	}
+
+	@After
+	public void tearDown() {
+		report.delete();
+		index.delete();
+		directory.delete();
+	}
+
+	/**
+	 * @return Text of the report without the date line that beginSegment writes.
+	 * */
+	private static String body(String segment) {
+		return segment.substring(segment.indexOf("\n\n") + 2);
+	}
+
+	private ReportStore storeWith(String... reports) throws IOException {
+		ReportStore store = new ReportStore(report.getPath());
+		for (String text : reports) {
+			store.beginSegment(false);
+			store.append(text);
+			store.endSegment();
+		}
+		return store;
+	}
+
+	@Test
+	public void finishedReportsAreReadBackAfterReopening() throws IOException {
+		storeWith("first\n", "drugi \u017c\u00f3\u0142w\n").close();
+		ReportStore store = new ReportStore(report.getPath());
+		assertEquals(2, store.getSegmentCount());
+		assertEquals("first\n", body(store.readSegment(0)));
+		assertEquals("drugi \u017c\u00f3\u0142w\n", body(store.readSegment(1)));
+		store.close();
+	}
+
+	@Test
+	public void unfinishedReportIsCutOffAfterACrash() throws IOException {
+		ReportStore store = storeWith("first\n");
+		store.beginSegment(false);
+		store.append("half of the second");
+		store.close(); // no endSegment, as if the client was killed
+		long finished;
+		try (RandomAccessFile file = new RandomAccessFile(index, "r")) {
+			file.seek(8);
+			finished = file.readLong();
+		}
+
+		store = new ReportStore(report.getPath());
+		assertEquals(1, store.getSegmentCount());
+		assertEquals(finished, report.length());
+		assertEquals("first\n", body(store.readSegment(0)));
+		store.beginSegment(false);
+		store.append("second\n");
+		store.endSegment();
+		assertEquals("second\n", body(store.readSegment(1)));
+		store.close();
+	}
+
+	@Test
+	public void tornIndexEntryIsIgnored() throws IOException {
+		storeWith("first\n", "second\n").close();
+		try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+			file.setLength(file.length() - 3); // crash while the second entry was written
+		}
+
+		ReportStore store = new ReportStore(report.getPath());
+		assertEquals(1, store.getSegmentCount());
+		assertEquals("first\n", body(store.readSegment(0)));
+		store.close();
+		assertEquals(16, index.length());
+	}
+
+	@Test
+	public void reportWithoutIndexBecomesTheFirstSegment() throws IOException {
+		try (FileOutputStream out = new FileOutputStream(report)) {
+			out.write("old report\n".getBytes(StandardCharsets.UTF_8));
+		}
+
+		ReportStore store = new ReportStore(report.getPath());
+		assertEquals(1, store.getSegmentCount());
+		assertEquals("old report\n", store.readSegment(0));
+		store.close();
+	}
+
+	@Test
+	public void replacingDeletesTheEarlierReports() throws IOException {
+		ReportStore store = storeWith("first\n", "second\n");
+		store.beginSegment(true);
+		store.append("whole history\n");
+		store.endSegment();
+		assertEquals(1, store.getSegmentCount());
+		assertEquals("whole history\n", body(store.readSegment(0)));
+		store.close();
+	}
+}
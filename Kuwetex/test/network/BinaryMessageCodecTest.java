@@ -0,0 +1,123 @@
+package network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BinaryMessageCodecTest {
+	private static final Message[] MESSAGES = {
+		new Message(null, Message.GET_RAPORT),
+		new Message("", Message.GET_METRICS),
+		new Message("You are connected.", Message.LOG_ME_IN, Message.NO_SEQUENCE, 7),
+		new Message("Za\u017c\u00f3\u0142\u0107 g\u0119\u015bl\u0105 ja\u017a\u0144, \u732b", Message.GET_RAPORT_SINCE, 123_456_789_012L),
+		new Message("chunk", Message.RAPORT_CHUNK, 0, Integer.MAX_VALUE),
+	};
+
+	private static void assertSameMessage(Message expected, Message actual) {
+		assertEquals(expected.getHEADER(), actual.getHEADER());
+		assertEquals(expected.getMessage(), actual.getMessage());
+		assertEquals(expected.getSequence(), actual.getSequence());
+		assertEquals(expected.getCorrelationId(), actual.getCorrelationId());
+	}
+
+	/**
+	 * @return Hello and the frames of the messages, as the codec writes them.
+	 * */
+	private static byte[] write(Message... messages) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BinaryMessageCodec codec = new BinaryMessageCodec();
+		codec.writeHeader(bytes);
+		for (Message message : messages)
+			codec.write(message);
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void messagesSurviveTheRoundTrip() throws IOException {
+		BinaryMessageCodec codec = new BinaryMessageCodec();
+		codec.readHeader(new ByteArrayInputStream(write(MESSAGES)) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 3)); // a stream gives the bytes in parts
+			}
+		});
+		for (Message message : MESSAGES)
+			assertSameMessage(message, codec.read());
+	}
+
+	@Test
+	public void frameIsDecodedOnlyWhenAllOfItHasArrived() throws IOException {
+		byte[] bytes = write(MESSAGES);
+		BinaryMessageCodec codec = new BinaryMessageCodec();
+		ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+		List<Message> read = new ArrayList<>();
+		for (byte b : bytes) { // one byte at a time, as from a slow socket
+			buffer.put(b);
+			buffer.flip();
+			Message message;
+			while ((message = codec.read(buffer)) != null)
+				read.add(message);
+			buffer.compact();
+		}
+		assertEquals(MESSAGES.length, read.size());
+		for (int i=0; i<MESSAGES.length; i++)
+			assertSameMessage(MESSAGES[i], read.get(i));
+		assertEquals(0, buffer.position());
+	}
+
+	@Test
+	public void incompleteFrameIsNotConsumed() throws IOException {
+		byte[] bytes = write(MESSAGES[2]);
+		BinaryMessageCodec codec = new BinaryMessageCodec();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, bytes.length - 1);
+		assertNull(codec.read(buffer));
+		int position = buffer.position();
+		assertNull(codec.read(buffer));
+		assertEquals(position, buffer.position());
+		buffer.limit(bytes.length);
+		assertSameMessage(MESSAGES[2], codec.read(buffer));
+	}
+
+	@Test
+	public void encodedTextIsSentAsItsSegments() throws IOException {
+		byte[][] segments = {"Garfield ".getBytes(StandardCharsets.UTF_8), new byte[0],
+				"\u017c\u00f3\u0142ty\n".getBytes(StandardCharsets.UTF_8)};
+		Message encoded = Message.encoded(new EncodedText(segments), Message.GET_RAPORT, Message.NO_SEQUENCE, 3);
+		Message plain = new Message("Garfield \u017c\u00f3\u0142ty\n", Message.GET_RAPORT, Message.NO_SEQUENCE, 3);
+		assertArrayEquals(write(plain), write(encoded));
+
+		BinaryMessageCodec codec = new BinaryMessageCodec();
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		for (ByteBuffer buffer : codec.encode(encoded))
+			frame.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		byte[] written = write(plain);
+		byte[] expected = new byte[written.length - Protocol.HELLO.length];
+		System.arraycopy(written, Protocol.HELLO.length, expected, 0, expected.length);
+		assertArrayEquals(expected, frame.toByteArray());
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void negativeFrameLengthIsRejected() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(Protocol.HELLO.length + 8);
+		buffer.put(Protocol.HELLO).putInt(-1).putInt(0).flip();
+		new BinaryMessageCodec().read(buffer);
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void tooLongFrameIsRejected() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(Protocol.HELLO.length + 4);
+		buffer.put(Protocol.HELLO).putInt(BinaryMessageCodec.MAX_FRAME_LENGTH + 1).flip();
+		new BinaryMessageCodec().read(buffer);
+	}
+}
@@ -0,0 +1,32 @@
+package benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and saves the results as JSON, so results of two builds can be compared
+ * (for example with a JMH result viewer).
+ * JMH jars are taken from the JMH_LIB classpath variable (jmh-core, jopt-simple, commons-math3
+ * and jmh-generator-annprocess for the annotation processing).
+ * */
+public class BenchmarkRunner {
+	
+	/**
+	 * @param args - [0] file for the results (default jmh-result.json), [1] regular expression
+	 * that selects benchmarks (default all of them).
+	 * @throws RunnerException
+	 * */
+	public static void main(String[] args) throws RunnerException {
+		String resultFile = args.length > 0 ? args[0] : "jmh-result.json";
+		String include = args.length > 1 ? args[1] : BenchmarkRunner.class.getPackage().getName() + ".*";
+		Options options = new OptionsBuilder()
+				.include(include)
+				.resultFormat(ResultFormatType.JSON)
+				.result(resultFile)
+				.build();
+		new Runner(options).run();
+	}
+}
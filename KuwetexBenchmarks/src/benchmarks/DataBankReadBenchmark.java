@@ -0,0 +1,90 @@
+package benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import kuwetexserver.DataBank;
+import kuwetexserver.KuwetexServer;
+import network.EncodedText;
+import other.Cat;
+import sensors.ExcrementQuality;
+import sensors.FurQuality;
+import sensors.HealthStatus;
+
+/**
+ * Rendering of the reports for histories of different size: a cold render of the whole history and
+ * the cached render after a new record. Repeated reads of the same version are not measured,
+ * they only return the cached text.
+ * Every fork fills the Data Bank once, one of 100 visits is an illness.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class DataBankReadBenchmark {
+	private static final int ILLNESS_EVERY = 100;
+	
+	@Param({"10000", "100000", "1000000"})
+	public int records;
+	
+	private DataBank dataBank;
+	private HealthStatus health;
+	private long date;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		dataBank = KuwetexServer.getDataBank();
+		health = HealthStatus.of(FurQuality.NORMAL, ExcrementQuality.NORMAL_I, false);
+		date = System.currentTimeMillis();
+		for (int i=0; i<records; i++) {
+			int n = i % Cat.NAMES.length;
+			dataBank.addNewRecord(Cat.NAMES[n], Cat.EYES[n], 4_000, i % KuwetexServer.ROLL, health);
+			if (i % ILLNESS_EVERY == 0)
+				dataBank.addNewIllCat(Cat.NAMES[n], date);
+		}
+	}
+	
+	/**
+	 * Whole history rendered from scratch and encoded, what the first request after a restart costs.
+	 * */
+	@Benchmark
+	public byte[] coldReport() {
+		StringBuilder builder = new StringBuilder();
+		dataBank.appendRecordsSince(0, builder);
+		return builder.toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * One new visit and the report after it, what a request costs while the cats are busy.
+	 * The history grows by one record per invocation.
+	 * */
+	@Benchmark
+	public EncodedText appendThenReport() {
+		dataBank.addNewRecord(Cat.NAMES[0], Cat.EYES[0], 4_000, 0, health);
+		return dataBank.getReport();
+	}
+	
+	/**
+	 * One new illness and the prescriptions after it. The history grows by one illness per invocation.
+	 * */
+	@Benchmark
+	public EncodedText appendThenPrescriptions() {
+		dataBank.addNewIllCat(Cat.NAMES[0], date);
+		return dataBank.getEncodedPrescriptions();
+	}
+}
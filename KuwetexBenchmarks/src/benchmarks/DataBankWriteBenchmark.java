@@ -0,0 +1,90 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import kuwetexserver.DataBank;
+import kuwetexserver.KuwetexServer;
+import other.Cat;
+import sensors.ExcrementQuality;
+import sensors.FurQuality;
+import sensors.HealthStatus;
+
+/**
+ * Adding visits to the Data Bank by one cat and by many cats at once.
+ * The Data Bank only grows, so every iteration adds a fixed batch of records instead of
+ * running for a fixed time. The score is the time of one batch per thread.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = DataBankWriteBenchmark.BATCH)
+@Measurement(iterations = 5, batchSize = DataBankWriteBenchmark.BATCH)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class DataBankWriteBenchmark {
+	static final int BATCH = 100_000;
+	
+	@Param({"heap", "mapped"})
+	public String storage;
+	
+	private DataBank dataBank;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dataBank = KuwetexServer.getDataBank();
+		if (storage.equals("mapped"))
+			dataBank.useMappedStorage(Files.createTempDirectory("kuwetex-bench").toFile());
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public void addNewRecordAlone(CatState cat) {
+		cat.addTo(dataBank);
+	}
+	
+	@Benchmark
+	@Threads(8)
+	public void addNewRecordContended(CatState cat) {
+		cat.addTo(dataBank);
+	}
+	
+	/**
+	 * Data of the cat of one benchmark thread.
+	 * */
+	@State(Scope.Thread)
+	public static class CatState {
+		private static int threads = 0;
+		private String name, eyes;
+		private long time = 0;
+		private static final HealthStatus HEALTH = HealthStatus.of(FurQuality.NORMAL, ExcrementQuality.NORMAL_I, false);
+		
+		@Setup(Level.Trial)
+		public void setUp() {
+			int n;
+			synchronized (CatState.class) {
+				n = threads++ % Cat.NAMES.length;
+			}
+			name = Cat.NAMES[n];
+			eyes = Cat.EYES[n];
+		}
+		
+		void addTo(DataBank dataBank) {
+			dataBank.addNewRecord(name, eyes, 4_000, time++ % KuwetexServer.ROLL, HEALTH);
+		}
+	}
+}
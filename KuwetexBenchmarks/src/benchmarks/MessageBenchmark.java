@@ -0,0 +1,70 @@
+package benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import network.BinaryMessageCodec;
+import network.Message;
+import network.MessageCodec;
+import network.SerializedMessageCodec;
+
+/**
+ * Encoding a report message and decoding it back, as the server and the panel do it.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+	@Param({"binary", "serialized"})
+	public String codec;
+	
+	@Param({"100", "100000"}) // characters of the text
+	public int size;
+	
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private MessageCodec writer, reader;
+	private char[] text;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, ClassNotFoundException {
+		writer = newCodec();
+		reader = newCodec();
+		writer.writeHeader(bytes);
+		reader.read(ByteBuffer.wrap(bytes.toByteArray())); // only the stream header, no message
+		text = new char[size];
+		Arrays.fill(text, 'k');
+	}
+	
+	private MessageCodec newCodec() {
+		return codec.equals("binary") ? new BinaryMessageCodec() : new SerializedMessageCodec();
+	}
+	
+	/**
+	 * Every invocation encodes a new String, so nothing encoded before can be reused.
+	 * */
+	@Benchmark
+	public Message roundTrip() throws IOException, ClassNotFoundException {
+		bytes.reset();
+		writer.write(new Message(new String(text), Message.GET_RAPORT_SINCE, size));
+		return reader.read(ByteBuffer.wrap(bytes.toByteArray()));
+	}
+}
@@ -0,0 +1,85 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import kuwetexserver.KuwetexServer;
+import other.Cat;
+import other.RandomSource;
+import sensors.WeightSensor;
+
+/**
+ * Random numbers drawn by many threads at once: one java.util.Random shared by all of them
+ * (as the server had before), the generator of the thread from RandomSource and the generator
+ * of the cat. The shared one is also measured with one thread, to see the cost of the contention.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1)
+public class RandomBenchmark {
+	private final Random shared = new Random(1);
+	private final RandomSource source = new RandomSource(1);
+	private final WeightSensor weightSensor = new WeightSensor();
+
+	@Benchmark
+	@Threads(1)
+	public int sharedRandomAlone() {
+		return shared.nextInt(KuwetexServer.ROLL);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public int sharedRandomContended() {
+		return shared.nextInt(KuwetexServer.ROLL);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public int threadRandom() {
+		return source.current().nextInt(KuwetexServer.ROLL);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public int catRandom(CatState cat) {
+		return cat.random.nextInt(KuwetexServer.ROLL);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public int weighCat(CatState cat) {
+		return weightSensor.weigh(cat.cat);
+	}
+
+	/**
+	 * Cat of one benchmark thread, with its own generator split from the source.
+	 * */
+	@State(Scope.Thread)
+	public static class CatState {
+		private Cat cat;
+		private SplittableRandom random;
+
+		@Setup(Level.Trial)
+		public void setUp(RandomBenchmark benchmark) {
+			cat = new Cat(Cat.NAMES[0], Cat.EYES[0], benchmark.source.split());
+			random = cat.getRandom();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package benchmarks;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import other.Cat;
+import sensors.*;
+
+/**
+ * Throughput of the sensors. Typed readings (weigh, check) are measured next to the text ones.
+ * The whole pipeline is measured until its reading is complete, that includes handing the sensors
+ * over to the pool, but not the stages that run after the reading.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class SensorBenchmark {
+	private final Cat cat = new Cat(0, 0);
+	private final AbstractSensor eyeSensor = new EyeSensor(),
+								 nameSensor = new NameSensor();
+	private final WeightSensor weightSensor = new WeightSensor();
+	private final HealthSensor healthSensor = new HealthSensor();
+	private final SensorPipeline pipeline = new SensorPipeline(ForkJoinPool.commonPool());
+	
+	@Benchmark
+	public String eyes() {
+		return eyeSensor.examine(cat);
+	}
+	
+	@Benchmark
+	public String weight() {
+		return weightSensor.examine(cat);
+	}
+	
+	@Benchmark
+	public int weightGrams() {
+		return weightSensor.weigh(cat);
+	}
+	
+	@Benchmark
+	public String name() {
+		return nameSensor.examine(cat);
+	}
+	
+	@Benchmark
+	public String health() {
+		return healthSensor.examine(cat);
+	}
+	
+	@Benchmark
+	public HealthStatus healthStatus() {
+		return healthSensor.check(cat);
+	}
+	
+	@Benchmark
+	public SensorReading pipeline() {
+		return pipeline.examine(cat, 0).join();
+	}
+}
@@ -0,0 +1,53 @@
+package kuwetexserver;
+
+import java.util.Arrays;
+
+/**
+ * Array that grows in chunks, so existing elements are never copied and concurrent writers
+ * can fill different slots at the same time. Used with Sequencer, which makes the filled
+ * slots visible to readers.
+ * @param <T> - type of the elements.
+ * */
+class AppendOnlyArray<T> {
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	
+	private volatile Object[][] chunks = new Object[16][];
+	
+	/**
+	 * Sets the element. Each slot should be set once.
+	 * */
+	void set(int index, T value) {
+		chunk(index >>> CHUNK_BITS)[index & CHUNK_MASK] = value;
+	}
+	
+	/**
+	 * @return The element. It has to be published by the Sequencer before.
+	 * */
+	@SuppressWarnings("unchecked")
+	T get(int index) {
+		return (T) chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+	}
+	
+	private Object[] chunk(int c) {
+		Object[][] current = chunks;
+		if (c < current.length && current[c] != null)
+			return current[c];
+		return newChunk(c);
+	}
+	
+	/**
+	 * The chunk table is copied on every new chunk, so readers that see the new table
+	 * see its chunks too.
+	 * */
+	private synchronized Object[] newChunk(int c) {
+		Object[][] current = chunks;
+		if (c < current.length && current[c] != null)
+			return current[c]; // created by other writer
+		Object[][] table = Arrays.copyOf(current, Math.max(current.length, Integer.highestOneBit(c) * 2));
+		table[c] = new Object[CHUNK_SIZE];
+		chunks = table;
+		return table[c];
+	}
+}
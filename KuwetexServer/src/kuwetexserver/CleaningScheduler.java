@@ -0,0 +1,145 @@
+package kuwetexserver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cleaning system of the litter boxes.
+ * A box is queued for cleaning when a cat makes it dirty over the limit, so nothing is polled
+ * and no lock is taken while the boxes are clean. A sweep that runs once per SWEEP_PERIOD queues
+ * dirty boxes that were missed, so a box does not stay dirty longer than that.
+ * Cleanings forced by the user go to the same queue and are run by the same thread.
+ * */
+class CleaningScheduler {
+	static final int MAX_DIRTINESS_LEVEL = 7;
+	private static final long SWEEP_PERIOD = 8_000; // ms, as often as the old monitor looked at the boxes
+	
+	private final LitterBoxDispatcher litterBoxes;
+	private volatile int clockSpeed = 1; // cleaning takes time / clockSpeed, 0 = no time
+	private final EventBroadcaster events;
+	private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "kuwetex-cleaning");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	/**
+	 * Constructor.
+	 * @param litterBoxes - boxes to clean.
+	 * @param events - subscribers are told about every cleaning.
+	 * */
+	CleaningScheduler(LitterBoxDispatcher litterBoxes, EventBroadcaster events) {
+		this.litterBoxes = litterBoxes;
+		this.events = events;
+		Metrics.gauge("cleaning.queue", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return scheduler.getQueue().size(); // with the sweep, which is always waiting
+			}
+		});
+	}
+	
+	/**
+	 * Makes the cleaning as fast as the clock of the simulation.
+	 * @param speed - how many times faster than real time the clock goes or 0 if the cleaning should take no time.
+	 * */
+	void setClockSpeed(int speed) {
+		clockSpeed = speed;
+	}
+	
+	/**
+	 * Starts the sweep.
+	 * */
+	void start() {
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sweep();
+			}
+		}, SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Called by the cat that made the box dirty. Queues the box if the limit was crossed.
+	 * @param box - the box, the cat is still inside.
+	 * @param level - dirtiness level after the visit.
+	 * @param dirt - dirt added by the cat.
+	 * */
+	void dirtAdded(LitterBox box, int level, int dirt) {
+		if (level >= MAX_DIRTINESS_LEVEL && level - dirt < MAX_DIRTINESS_LEVEL)
+			schedule(box);
+	}
+	
+	/**
+	 * Queues every box that is dirty over the limit and not queued yet.
+	 * */
+	void sweep() {
+		for (LitterBox box : litterBoxes.getBoxes())
+			if (box.getDirtiness() >= MAX_DIRTINESS_LEVEL)
+				schedule(box);
+	}
+	
+	/**
+	 * Queues cleaning of all the boxes, whatever their dirtiness is.
+	 * @return Future that is done when all the boxes are clean.
+	 * */
+	CompletableFuture<Void> forceCleaning() {
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				ServerLog.log(ServerLog.INFO, "Cleaning is forced by user.");
+				try {
+					for (LitterBox box : litterBoxes.getBoxes())
+						clean(box, true);
+					done.complete(null);
+				} catch (InterruptedException e) {
+					done.completeExceptionally(e);
+				}
+			}
+		});
+		return done;
+	}
+	
+	private void schedule(final LitterBox box) {
+		if ( ! box.markCleaningScheduled()) return; // already in the queue
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					clean(box, false);
+				} catch (InterruptedException e) {
+					ServerLog.log(ServerLog.ERROR, "Cleaning was interrupted.", e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Cleans the box. Waits if cat is inside, other boxes can be used in the meantime.
+	 * @param forced - true = clean even if the box is not dirty.
+	 * */
+	private void clean(LitterBox box, boolean forced) throws InterruptedException {
+		box.lockForCleaning(); // There can not be any cat inside during cleaning process
+		try {
+			if (box.getDirtiness() >= MAX_DIRTINESS_LEVEL || forced) {
+				int dirtiness = box.clean();
+				ServerLog.log(ServerLog.INFO, "Cleaning process is running. Litter box #{}, dirtiness level: {}",
+						box.getNumber(), dirtiness);
+				int time = KuwetexServer.getRandom().current().nextInt(KuwetexServer.ROLL); // cleaning time
+				if (clockSpeed > 0)
+					Thread.sleep(time / clockSpeed);
+				events.cleaningDone(box.getNumber(), dirtiness, forced);
+			} else {
+				box.cancelCleaning(); // cleaned by the user after it was queued, keep the dirt added since
+			}
+		} finally {
+			box.unlockAfterCleaning();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package kuwetexserver;
+
+import java.net.Socket;
+
+import network.Message;
+
+/**
+ * Connected client as seen by the request handling code.
+ * It is implemented by the blocking ClientWorker and by the selector based NioSession.
+ * */
+interface ClientSession {
+	/**
+	 * @return ID of the client.
+	 * */
+	int getId();
+	
+	/**
+	 * @return Socket the client is connected with.
+	 * */
+	Socket getSocket();
+	
+	/**
+	 * Sends response to the client.
+	 * @param message - the Message class object that will be sent.
+	 * */
+	void sendMessage(Message message);
+	
+	/**
+	 * Sends response to the client without waiting for space in its queue. Used by the threads
+	 * that are shared by all the clients, so one slow client does not stop them.
+	 * If the message does not fit, the client is too slow and it is disconnected.
+	 * @param message - the Message class object that will be sent.
+	 * */
+	void offerMessage(Message message);
+	
+	/**
+	 * Waits until the messages that were sent before are mostly delivered to the client.
+	 * Used between the chunks of a long response, so a slow client does not make the server
+	 * keep the whole response in memory. A client that takes nothing for a long time is disconnected
+	 * and the waiting ends, so a stalled client does not hold the thread of the server.
+	 * @throws InterruptedException
+	 * */
+	void awaitCapacity() throws InterruptedException;
+	
+	/**
+	 * Closes the connection with the client and removes it from the registry of the clients.
+	 * */
+	void logOutUser();
+}
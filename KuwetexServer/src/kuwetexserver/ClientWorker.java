@@ -1,53 +1,110 @@
 package kuwetexserver;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
-import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import network.Message;
+import network.MessageCodec;
+import network.Protocol;
 
 /**
  * This class represents client thread.
  * Client is connected to the server and it sends messages.
  * Task of the server is to response to the client in the run method.
+ * Messages for the client wait in a bounded queue and are written by a writer thread of the client,
+ * so threads that send (for example the event broadcaster) never wait for a slow socket.
+ * A client that does not take its messages until the queue is full is disconnected. Only pushed
+ * events are dropped instead, a panel sees them as a gap and gets them with the next report.
  * */
-class ClientWorker implements Runnable {
+class ClientWorker implements Runnable, ClientSession {
+	private static final int MAX_QUEUED_MESSAGES = 1_024;
+	private static final int MAX_QUEUED_CHARS = 256 * 1024; // awaitCapacity waits above it
+	private static final long SEND_TIMEOUT = 5_000; // ms a response waits for space in the queue
+	private static final long SLOW_CLIENT_TIMEOUT = 10_000; // ms awaitCapacity waits while the client takes nothing
+	private static final int MAX_IN_FLIGHT = 16; // requests handled out of order at once, then reading waits
+	private static final Message CLOSED = new Message(null, Message.LOG_OUT); // stops the writer
+	private static final LongAdder slowClients = Metrics.counter("clients.dropped.slow");
+	private static final LongAdder droppedEvents = Metrics.counter("events.dropped");
+	
 	private final Socket socket;	
-	private final ObjectInputStream in;
-	private final ObjectOutputStream out;
+	private final MessageCodec codec;
 	private final int ID;	
-	private final Map<Integer, Socket> clientMap;
+	private final SessionRegistry sessions;
+	private final RequestHandler handler;
+	private final Executor executor; // for the requests answered out of order and for the writer
+	private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+	private final BlockingQueue<Message> outbound = new LinkedBlockingQueue<>(MAX_QUEUED_MESSAGES);
+	private final AtomicLong queuedChars = new AtomicLong(0);
+	private final Object capacity = new Object(); // awaitCapacity waits on it
+	private volatile long lastWrite = System.currentTimeMillis(); // when the writer last wrote a message
 	//private static volatile int online = 0;
 		
 	/**
 	 * Constructor for new client that is connected to the server via socket.
+	 * Protocol of the client is detected here and the stream headers are exchanged.
 	 * @param s - the socket
-	 * @param map - reference to the map of clients. Every instance of this class is added to the map.
+	 * @param sessions - registry of the clients. Every instance of this class is added to it when the user logs in.
+	 * @param executor - runs requests that can be answered out of order.
 	 * @throws IOException
 	 * */
-	public ClientWorker(Socket s, int id, Map<Integer, Socket> map) throws IOException {
+	public ClientWorker(Socket s, int id, SessionRegistry sessions, Executor executor) throws IOException {
 		socket = s;
 		ID = id;
-		clientMap = map;
-		in = new ObjectInputStream(socket.getInputStream());
-		out = new ObjectOutputStream(socket.getOutputStream());
+		this.sessions = sessions;
+		handler = new RequestHandler(sessions);
+		this.executor = executor;
+		BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+		codec = Protocol.detect(in);
+		codec.readHeader(in);
+		codec.writeHeader(new BufferedOutputStream(socket.getOutputStream()));
 		//online++;
 	}
 	
 	/**
 	 * Runs the client thread. The loop inside is done when the socket is closed.
+	 * Requests that may be answered out of order are handled on the executor,
+	 * so the next requests of the client do not wait for them. If MAX_IN_FLIGHT of them
+	 * are being handled, the next request is read when one of them is done.
 	 * */
 	@Override
 	public void run() {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		});
 		Message message;
 		while (socket.isConnected()) 
 		{			
 				try {
-					message = (Message) in.readObject();
-					response(message);
-				} catch (ClassNotFoundException | IOException e) {
+					message = codec.read();
+					if (RequestHandler.canAnswerOutOfOrder(message)) {
+						final Message request = message;
+						inFlight.acquire();
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									handler.response(ClientWorker.this, request);
+								} finally {
+									inFlight.release();
+								}
+							}
+						});
+					} else {
+						handler.response(this, message);
+					}
+				} catch (ClassNotFoundException | IOException | InterruptedException e) {
 					//e.printStackTrace();
 					//System.out.println("Error, user #" + ID);
 					logOutUser();
@@ -55,88 +112,149 @@ class ClientWorker implements Runnable {
 				}							
 		}
 	}
+	
 	/**
-	 * Do some action and sends response message to the client.
-	 * The action depends on header of the message given as an argument.
-	 * @param message - message from the client.
+	 * Loop of the writer thread. Ends when the user is logged out.
 	 * */
-	private void response(Message message) {
-		System.out.println("Message from client #" + ID + ": " + message.getMessage());
-		switch (message.getHEADER()) {			
-		case Message.LOG_ME_IN: {
-			clientMap.put(ID, socket); // add me to the map
-			System.out.println("Online now: "+clientMap.size());
-			message = new Message("You are connected.", Message.LOG_ME_IN);
-			sendMessage(message);
-			break;
-		}
-		case Message.LOG_OUT: {
+	private void writeLoop() {
+		try {
+			while (true)
+			{
+				Message message = outbound.take();
+				if (message == CLOSED) return;
+				if ( ! write(message)) {
+					logOutUser();
+					return;
+				}
+				lastWrite = System.currentTimeMillis();
+				long queued = queuedChars.addAndGet(-length(message));
+				if (queued <= MAX_QUEUED_CHARS && queued + length(message) > MAX_QUEUED_CHARS)
+					synchronized (capacity) {
+						capacity.notifyAll();
+					}
+			}
+		} catch (InterruptedException e) {
 			logOutUser();
-			break;
 		}
-		case Message.GET_RAPORT: {
-			String raport = KuwetexServer.getReports();
-			message = new Message(raport, Message.GET_RAPORT);
-			sendMessage(message);
-			break;
+	}
+	
+	/**
+	 * Writes the message. A failed write is not tried again: a part of the frame may be sent
+	 * already and the stream of the codec can not be used after an error, so the session is dropped.
+	 * @return False if the message could not be written.
+	 * */
+	private boolean write(Message message) {
+		try {
+			codec.write(message);
+			return true;
+		} catch (IOException e) {
+			if ( ! socket.isClosed())
+				ServerLog.log(ServerLog.ERROR, "Error while sending message back to the client #" + ID, e);
+			return false;
 		}
-		case Message.FORCE_CLEANING: {
-			String m = "Cleaning done.";
-			try {
-				KuwetexServer.clearLitterBox(true); // true = forced cleaning
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-				m = "Error. Failed to clean the litter box.";
-			} finally {
-				message = new Message(m, Message.FORCE_CLEANING);
-				sendMessage(message);
+	}
+	
+	/**
+	 * @return Length of the text (chars, or bytes of an encoded text), without decoding it.
+	 * */
+	private static int length(Message message) {
+		if (message.getEncodedText() != null) return message.getEncodedText().length();
+		return message.getMessage() == null ? 0 : message.getMessage().length();
+	}
+	
+	@Override
+	public int getId() {
+		return ID;
+	}
+	
+	@Override
+	public Socket getSocket() {
+		return socket;
+	}
+	
+	/**
+	 * Waits until the writer has written enough of the queued messages.
+	 * If the writer can not write anything for SLOW_CLIENT_TIMEOUT, because the client does not read,
+	 * the client is disconnected and the waiting ends.
+	 * */
+	@Override
+	public void awaitCapacity() throws InterruptedException {
+		synchronized (capacity) {
+			while (queuedChars.get() > MAX_QUEUED_CHARS && ! socket.isClosed()) {
+				long late = System.currentTimeMillis() - lastWrite;
+				if (late > SLOW_CLIENT_TIMEOUT) {
+					dropSlowClient();
+					return;
+				}
+				capacity.wait(Math.min(1_000, SLOW_CLIENT_TIMEOUT - late + 1)); // closing the socket does not notify
 			}
-			break;
-		}
-		case Message.GET_RECOMMENDATIONS: {
-			String recommendations = KuwetexServer.getDataBank().getPrescriptions();
-			message = new Message(recommendations, Message.GET_RECOMMENDATIONS);
-			sendMessage(message);
-			break;
-		}
-		default: {
-			System.out.println("Error, no such case."); 
-			logOutUser(); // disconnect user
-			break;
 		}
-		} // end of switch
 	}
 	
 	/**
 	 * When user disconnects this method closes socket (if it is still open).
-	 * It also deletes the user for the client map.
+	 * It also deletes the user from the registry of the clients and from the subscribers.
 	 * */
-	private void logOutUser() {
+	@Override
+	public void logOutUser() {
+		KuwetexServer.getEvents().unsubscribe(this);
 		if (!socket.isClosed())
 			try {
-				System.out.println("Logging out user #" + ID);
+				ServerLog.log(ServerLog.INFO, "Logging out user #{}", ID);
 				socket.close();
 			} catch (IOException e1) {
 			}
-		clientMap.remove(ID);
+		outbound.clear();
+		outbound.offer(CLOSED); // writer stops
 		//online--;
-		System.out.println("User #"+ID+" has disconnected. Online now: " + clientMap.size());
+		if (sessions.unregister(this))
+			ServerLog.log(ServerLog.INFO, "User #{} has disconnected. Online now: {}", ID, sessions.size());
 	}
 	
 	/**
-	 * Sends response to the client.
+	 * Queues the message for the writer. Pushed events never wait, a response waits up to
+	 * SEND_TIMEOUT for space in the queue. If there is no space, the client is too slow
+	 * and it is disconnected. An event that does not fit is dropped and counted in events.dropped.
 	 * @param message - the Message class object that will be sent.
 	 * */
-	private void sendMessage (Message message) {
+	@Override
+	public void sendMessage (Message message) {
+		send(message, true);
+	}
+	
+	@Override
+	public void offerMessage(Message message) {
+		send(message, false);
+	}
+	
+	/**
+	 * @param wait - true if a response may wait SEND_TIMEOUT for space in the queue.
+	 * */
+	private void send(Message message, boolean wait) {
+		if (socket.isClosed()) return;
+		if (queuedChars.getAndAdd(length(message)) == 0)
+			lastWrite = System.currentTimeMillis(); // nothing was waiting, the client is not late
+		boolean event = EventBroadcaster.isEvent(message), queued;
 		try {
-			out.writeObject(message);
-			out.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-			System.out.println("Error while sending message back to the client #"+ID);
-			// recursion try
-			sendMessage(message);
+			queued = ! wait || event ? outbound.offer(message)
+					: outbound.offer(message, SEND_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			queued = false;
 		}
+		if (queued) return;
+		queuedChars.addAndGet(-length(message));
+		if (event)
+			droppedEvents.increment();
+		else
+			dropSlowClient();
+	}
+	
+	private void dropSlowClient() {
+		if (socket.isClosed()) return;
+		slowClients.increment();
+		ServerLog.log(ServerLog.WARN, "Client #{} does not receive its messages, it is disconnected.", ID);
+		logOutUser();
 	}
 
 }
@@ -1,69 +1,108 @@
 package kuwetexserver;
 
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.List;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+import network.EncodedText;
+import sensors.HealthStatus;
 
 /**
  * The class holds all the information about cats attributes, illnesses
  * and litter box uses history.
+ * Records are only appended, so no locks are used: each record gets a number from the Sequencer
+ * and is stored in its own slot. Readers take the published count and read the records below it,
+ * so cat threads never wait for a report to be rendered, nor for each other.
+ * A record that could not be stored is still published, as a lost record, so the published count
+ * never stops at it.
  * */
 public class DataBank {
-	private static final List<Data> dataList = new ArrayList<>();
-	private static final List<IllnessHistory> illnessHistory = new ArrayList<>();
+	private static volatile VisitStore visits = new HeapVisitStore();
+	private static final Sequencer visitSequencer = new Sequencer();
+	private static final AppendOnlyArray<IllnessHistory> illnessHistory = new AppendOnlyArray<>();
+	private static final Sequencer illnessSequencer = new Sequencer();
+	// numbers of the visits that were claimed but could not be stored
+	private static final Set<Integer> lostVisits = ConcurrentHashMap.newKeySet();
+	private static final String LOST = "* (record was lost)";
+	// for the queries
+	private static final RecordIndex visitIndex = new RecordIndex();
+	private static final RecordIndex illnessIndex = new RecordIndex();
+	private static final Statistics statistics = new Statistics();
+	// time of adding a record (index, log queue, statistics) and of rendering a report
+	private static final LatencyHistogram visitWrites = Metrics.histogram("databank.write.visit");
+	private static final LatencyHistogram illnessWrites = Metrics.histogram("databank.write.illness");
+	private static final LatencyHistogram reportReads = Metrics.histogram("databank.read.report");
+	private static final LatencyHistogram prescriptionReads = Metrics.histogram("databank.read.prescriptions");
+	
+	static {
+		Metrics.gauge("databank.visits", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return visitSequencer.published();
+			}
+		});
+		Metrics.gauge("databank.illnesses", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return illnessSequencer.published();
+			}
+		});
+	}
 	
 	// for ill cats
 	private static final String[] PRESCRIPTIONS = {"Go to doctor.", "Dig the grave.",
 			"Do not do anything, cat will recover soon.", "Cat needs to stress out. Give him/her Prozac."}; 
 	
-	private static final ReadWriteLock rwLock = new ReentrantReadWriteLock();
-	
-	private class Data {
-		private final String catName;
-		private final String eyeColor;
-		private final long timeSpent;
-		private final String dateOfexcrection;
-		private final String weight;
-		private final String health;
-		
-		/**
-		 * Constructor.
-		 * @param name - name of the cat.
-		 * @param eyes - eyes color of the cat.
-		 * @param weight - current cat weight (kg).
-		 * @param time - the time of last defecation.
-		 * @param health - health status of the cat.
-		 * */
-		Data(String name, String eyes, String weight, long time, String health) {
-			catName = name; eyeColor = eyes; timeSpent = time; this.weight = weight; this.health = health;
-			dateOfexcrection = Calendar.getInstance().getTime().toString();
+	// rendered reports, extended when records are added
+	private static final RenderCache reportCache = new RenderCache(new RenderCache.Renderer() {
+		@Override
+		public void append(int index, StringBuilder builder) {
+			renderVisit(visits, index, builder);
 		}
-		/**
-		 * Overridden method.
-		 * @return String representation of the informations about the cat, that are stored in the object.
-		 * */
+	});
+	private static final RenderCache prescriptionCache = new RenderCache(new RenderCache.Renderer() {
 		@Override
-		public String toString() {
-			return "* "+catName +"; "+ eyeColor+" eyes; "+"weight: "+weight+
-					";  "+timeSpent +"ms, on day: "+dateOfexcrection + ";\n" + health;			
+		public void append(int index, StringBuilder builder) {
+			renderIllness(index, builder);
 		}
+	});
+	
+	private static volatile DataLog log = null; // null = history is kept only in memory
+	private static volatile Listener listener = null;
+	
+	/**
+	 * Gets to know about new records. It is called by the thread that added the record,
+	 * so it should return quickly.
+	 * */
+	interface Listener {
+		void visitAdded(int index);
+		void illnessAdded(int index);
 	}
 	
-	private class IllnessHistory {
+	private static class IllnessHistory {
 		String catName;
-		String date;
+		long date; // epoch ms
 		String recommendation;
 		
 		/**
 		 * If cat is ill, recommendation for him/her is generated here.
 		 * @param cat - cat name
-		 * @param date - date of the analysis
+		 * @param date - date of the analysis (epoch ms)
+		 * @param random - generator that chooses the recommendation.
+		 * */
+		public IllnessHistory(String cat, long date, SplittableRandom random) {
+			this(cat, date, PRESCRIPTIONS[random.nextInt(PRESCRIPTIONS.length)]);
+		}
+		
+		/**
+		 * Constructor for the records read from the data log.
+		 * @param recommendation - recommendation that was given.
 		 * */
-		public IllnessHistory(String cat, String date) {
-			catName = cat; this.date = date;
-			recommendation = PRESCRIPTIONS[KuwetexServer.random.nextInt(PRESCRIPTIONS.length)];
+		public IllnessHistory(String cat, long date, String recommendation) {
+			catName = cat; this.date = date; this.recommendation = recommendation;
 		}
 		
 		/**
@@ -72,57 +111,288 @@ public class DataBank {
 		 * */
 		@Override
 		public String toString() {			
-			return catName + " was ill on " + date +". Recommendation:\n" + recommendation;
+			return catName + " was ill on " + new Date(date).toString() +". Recommendation:\n" + recommendation;
 		}
 	}
 	
+	/**
+	 * Keeps the visits in memory-mapped columns instead of objects on the heap.
+	 * It should be called before the history is loaded from the data log.
+	 * @param directory - directory for the column files.
+	 * @throws IOException
+	 * */
+	public synchronized void useMappedStorage(File directory) throws IOException {
+		if (visitSequencer.published() > 0)
+			throw new IllegalStateException("Storage can not be changed when visits are stored.");
+		visits = new MappedVisitStore(directory);
+	}
+	
+	/**
+	 * Loads the history saved in the data log and then saves every new record to the log.
+	 * It should be called once, before cats start to use the litter box.
+	 * @param dataLog - the log, it is started here.
+	 * @return Number of records loaded from the log.
+	 * @throws IOException
+	 * */
+	public synchronized long attachLog(DataLog dataLog) throws IOException {
+		long count = dataLog.replay(new DataLog.Replay() {
+			@Override
+			public void visit(String name, String eyes, int grams, long time, HealthStatus health, long timestamp) {
+				storeVisit(name, eyes, grams, time, health, timestamp, null);
+			}
+			
+			@Override
+			public void illness(String catName, long date, String recommendation) {
+				storeIllness(new IllnessHistory(catName, date, recommendation), null);
+			}
+		});
+		dataLog.start(visitSequencer.published(), illnessSequencer.published());
+		log = dataLog;
+		return count;
+	}
+	
+	/**
+	 * @param newListener - listener of the new records (not the ones loaded from the data log) or null.
+	 * */
+	void setListener(Listener newListener) {
+		listener = newListener;
+	}
+	
 	/**
 	 * Adds new record to the list of cats' data.
 	 * @param name - name of the cat.
 	 * @param eyes - eyes color of the cat.
-	 * @param weight - current cat weight (kg).
+	 * @param grams - current cat weight (g).
 	 * @param time - the time of last defecation.
 	 * @param health - health status of the cat.
 	 * */
-	public void addNewRecord (String name, String eyes, String weight ,long time, String health) {
-		rwLock.writeLock().lock();
+	public void addNewRecord (String name, String eyes, int grams, long time, HealthStatus health) {
+		addNewRecord(name, eyes, grams, time, health, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Adds new record with the given date. Used by the simulation, which has its own clock.
+	 * @param timestamp - date of the visit (epoch ms).
+	 * */
+	public void addNewRecord (String name, String eyes, int grams, long time, HealthStatus health, long timestamp) {
+		long start = System.nanoTime();
+		int index = storeVisit(name, eyes, grams, time, health, timestamp, log);
+		visitWrites.recordSince(start);
+		Listener l = listener;
+		if (l != null) l.visitAdded(index);
+	}
+	
+	/**
+	 * Adds new illness history to the list of illnesses.
+	 * @param catName - name of the cat
+	 * @param date - date of the analysis (epoch ms)
+	 * */
+	public void addNewIllCat(String catName, long date) {
+		addNewIllCat(catName, date, KuwetexServer.getRandom().current());
+	}
+	
+	/**
+	 * Adds new illness history, the recommendation is chosen with the given generator.
+	 * The health sensor gives the generator of the cat, so a seeded cat gets the same recommendations.
+	 * @param random - generator of the calling thread.
+	 * */
+	public void addNewIllCat(String catName, long date, SplittableRandom random) {
+		long start = System.nanoTime();
+		int index = storeIllness(new IllnessHistory(catName, date, random), log);
+		illnessWrites.recordSince(start);
+		Listener l = listener;
+		if (l != null) l.illnessAdded(index);
+	}
+	
+	/**
+	 * Stores the visit in the next slot and publishes it. The slot is published even if it can not
+	 * be stored (for example a chunk of the mapped storage can not be mapped), then it is marked
+	 * as lost and the exception is thrown. The log is written after publishing, so a full log queue
+	 * delays only this writer and not the published count.
+	 * @param dataLog - log for the visit or null.
+	 * @return Number of the visit.
+	 * */
+	private static int storeVisit(String name, String eyes, int grams, long time, HealthStatus health,
+			long timestamp, DataLog dataLog) {
+		int index = visitSequencer.claim();
 		try {
-			dataList.add (new Data(name, eyes, weight, time, health));
+			visits.set(index, name, eyes, grams, time, health, timestamp);
+			visitIndex.add(index, name, timestamp);
+		} catch (RuntimeException | Error e) {
+			lostVisits.add(index);
+			ServerLog.log(ServerLog.ERROR, "Visit #" + index + " of " + name + " was lost.", e);
+			throw e;
 		} finally {
-			rwLock.writeLock().unlock();
+			visitSequencer.publish(index);
 		}
+		if (dataLog != null) // the log keeps the number, so replay restores the order
+			dataLog.appendVisit(index, name, eyes, grams, time, health, timestamp);
+		statistics.visit(name, timestamp, time, grams);
+		return index;
 	}
 	
 	/**
-	 * Adds new illness history to the list of illnesses.
-	 * @param catName - name of the cat
-	 * @param date - date of the analysis
+	 * Stores the illness in the next slot and publishes it, like storeVisit().
+	 * A lost illness has no object in its slot.
 	 * */
-	public void addNewIllCat(String catName, String date) {
-		rwLock.writeLock().lock();
+	private static int storeIllness(IllnessHistory illness, DataLog dataLog) {
+		int index = illnessSequencer.claim();
 		try {
-			illnessHistory.add(new IllnessHistory(catName, date));
+			illnessHistory.set(index, illness);
+			illnessIndex.add(index, illness.catName, illness.date);
+		} catch (RuntimeException | Error e) {
+			illnessHistory.set(index, null);
+			ServerLog.log(ServerLog.ERROR, "Illness #" + index + " of " + illness.catName + " was lost.", e);
+			throw e;
 		} finally {
-			rwLock.writeLock().unlock();
+			illnessSequencer.publish(index);
 		}
+		if (dataLog != null)
+			dataLog.appendIllness(index, illness.catName, illness.date, illness.recommendation);
+		statistics.illness(illness.catName, illness.date);
+		return index;
 	}
+	
 	/**
 	 * Overridden method.
 	 * @return String representation of all data about the cats stored in the Data Bank. 
 	 * */
 	@Override
 	public String toString() {
-		StringBuilder builder = new StringBuilder();
-		rwLock.readLock().lock();
-		try {
-			for (Data d : dataList) {
-				builder.append(d.toString());
-				builder.append("\n");
-			}
-		} finally {
-			rwLock.readLock().unlock();
+		return getReport().toString();
+	}
+	
+	/**
+	 * Only the records added since the last call are rendered.
+	 * @return Encoded text of all the visits, shared by all the requests for the same version.
+	 * */
+	public EncodedText getReport() {
+		long start = System.nanoTime();
+		EncodedText report = reportCache.get(visitSequencer.published());
+		reportReads.recordSince(start);
+		return report;
+	}
+	
+	/**
+	 * Appends records that were added after the given sequence number.
+	 * Sequence number of a record is its position in the history, so the cost depends
+	 * only on the number of new records.
+	 * @param sequence - number of records the client already has. If it is greater than
+	 * the history (server was restarted), all records are appended.
+	 * @param builder - String representation of the new records is appended here.
+	 * @return Sequence number for the next request.
+	 * */
+	public long appendRecordsSince(long sequence, StringBuilder builder) {
+		VisitStore store = visits;
+		int size = visitSequencer.published();
+		int from = (sequence < 0 || sequence > size) ? 0 : (int) sequence;
+		for (int i=from; i<size; i++) {
+			renderVisit(store, i, builder);
+			builder.append("\n");
+		}
+		return size;
+	}
+	
+	/**
+	 * Appends records, starting from the given one, until the text is long enough.
+	 * @param from - number of the first record.
+	 * @param to - number of the record after the last one, at most getVisitCount().
+	 * @param maxLength - records are not added after the builder is this long.
+	 * @param builder - String representation of the records is appended here.
+	 * @return Number of the next record.
+	 * */
+	int appendRecords(int from, int to, int maxLength, StringBuilder builder) {
+		VisitStore store = visits;
+		int i = from;
+		while (i < to && builder.length() < maxLength) {
+			renderVisit(store, i++, builder);
+			builder.append("\n");
 		}
-		return builder.toString();
+		return i;
+	}
+	
+	/**
+	 * Appends String representation of one visit, as it is shown in the report.
+	 * @param index - number of the visit, it has to be added already.
+	 * */
+	void appendVisit(int index, StringBuilder builder) {
+		renderVisit(visits, index, builder);
+	}
+	
+	/**
+	 * Appends String representation of one illness, as it is shown in the prescriptions.
+	 * @param index - number of the illness, it has to be added already.
+	 * */
+	void appendIllness(int index, StringBuilder builder) {
+		renderIllness(index, builder);
+	}
+	
+	private static void renderVisit(VisitStore store, int index, StringBuilder builder) {
+		if ( ! lostVisits.isEmpty() && lostVisits.contains(index))
+			builder.append(LOST);
+		else
+			store.appendTo(index, builder);
+	}
+	
+	private static void renderIllness(int index, StringBuilder builder) {
+		IllnessHistory illness = illnessHistory.get(index);
+		if (illness == null)
+			builder.append(LOST);
+		else
+			builder.append("* ").append(illness.toString());
+	}
+	
+	/**
+	 * Appends the visits of the cat from the time range, in the order of the history.
+	 * Only the visits found are read.
+	 * @param cat - name of the cat or null for all cats.
+	 * @param from - beginning of the time range (epoch ms, included).
+	 * @param to - end of the time range (epoch ms, not included).
+	 * @param builder - String representation of the visits is appended here.
+	 * @return Number of the visits found.
+	 * */
+	public int appendVisits(String cat, long from, long to, StringBuilder builder) {
+		VisitStore store = visits;
+		int[] found = visitIndex.find(cat, from, to, visitSequencer.published());
+		for (int index : found) {
+			renderVisit(store, index, builder);
+			builder.append("\n");
+		}
+		return found.length;
+	}
+	
+	/**
+	 * Appends the illnesses of the cat from the time range with the prescriptions, in the order of the history.
+	 * @param cat - name of the cat or null for all cats.
+	 * @param from - beginning of the time range (epoch ms, included).
+	 * @param to - end of the time range (epoch ms, not included).
+	 * @param builder - String representation of the illnesses is appended here.
+	 * @return Number of the illnesses found.
+	 * */
+	public int appendIllnesses(String cat, long from, long to, StringBuilder builder) {
+		int[] found = illnessIndex.find(cat, from, to, illnessSequencer.published());
+		for (int index : found) {
+			renderIllness(index, builder);
+			builder.append("\n");
+		}
+		return found.length;
+	}
+	
+	/**
+	 * Appends the statistics of the last hour, day and week. They are kept up to date
+	 * when the records are added, so nothing is computed from the history here.
+	 * @param cat - name of the cat or null for all cats.
+	 * @param builder - String representation of the statistics is appended here.
+	 * */
+	public void appendStatistics(String cat, StringBuilder builder) {
+		statistics.appendTo(cat, System.currentTimeMillis(), builder);
+	}
+	
+	/**
+	 * @return Number of the visits in the history.
+	 * */
+	public int getVisitCount() {
+		return visitSequencer.published();
 	}
 	
 	/**
@@ -130,18 +400,17 @@ public class DataBank {
 	 * @return String representation of the values.
 	 * */
 	public String getPrescriptions() {
-		StringBuilder builder = new StringBuilder();
-		rwLock.readLock().lock();
-		try {
-			for (IllnessHistory illness : illnessHistory) {
-				builder.append("* ");
-				builder.append(illness.toString());
-				builder.append("\n");
-			}
-		} finally {
-			rwLock.readLock().unlock();
-		}
-		return builder.toString();
+		return getEncodedPrescriptions().toString();
+	}
+	
+	/**
+	 * Only the illnesses added since the last call are rendered.
+	 * @return Encoded text of the prescriptions, shared by all the requests for the same version.
+	 * */
+	public EncodedText getEncodedPrescriptions() {
+		long start = System.nanoTime();
+		EncodedText prescriptions = prescriptionCache.get(illnessSequencer.published());
+		prescriptionReads.recordSince(start);
+		return prescriptions;
 	}
 }
-
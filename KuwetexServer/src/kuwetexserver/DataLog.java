@@ -0,0 +1,435 @@
+package kuwetexserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import sensors.HealthStatus;
+
+/**
+ * Append-only log of the Data Bank records, so the history survives restart of the server.
+ * The log is split into segment files (segment-00000001.log, ...). Every record is
+ * length (int), CRC32 of the body (int) and the body (type byte and the fields).
+ * Cat threads only put the encoded record into a queue. One writer thread takes everything
+ * that is waiting, writes it at once and calls fsync once for the whole batch (group commit),
+ * so adding a record does not wait for the disk.
+ * Records of concurrent cats can reach the queue in other order than their numbers in the
+ * Data Bank, so every record keeps its number and the replay puts them back in order.
+ * */
+public class DataLog {
+	private static final String PREFIX = "segment-", SUFFIX = ".log";
+	private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+	private static final int MAX_BATCH = 4_096;
+	private static final int QUEUE_CAPACITY = 65_536; // cat threads wait if the disk is that much behind
+	private static final int RECORD_HEADER = 8; // length + crc
+
+	// record types
+	private static final byte SESSION = 1; // start of the server, numbers of the first records
+	private static final byte VISIT = 2; // number, name, eyes, grams, time, health code, date (epoch ms)
+	private static final byte ILLNESS = 3; // number, name, date (epoch ms), recommendation
+
+	private final File directory;
+	private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+	private final List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+	private int segmentNumber = 0;
+	private FileChannel segment = null;
+	private File segmentFile = null;
+	private volatile boolean isWorking = false;
+	private volatile Thread writer = null;
+	private final LatencyHistogram batchWrites = Metrics.histogram("datalog.batch.write"); // write + fsync
+	private final LongAdder records = Metrics.counter("datalog.records");
+	private final LongAdder lost = Metrics.counter("datalog.lost");
+
+	/**
+	 * Receives records read from the log at startup.
+	 * */
+	public interface Replay {
+		void visit(String name, String eyes, int grams, long time, HealthStatus health, long timestamp);
+		void illness(String catName, long date, String recommendation);
+	}
+
+	/**
+	 * Constructor.
+	 * @param directory - directory of the segment files. It is created if it does not exist.
+	 * @throws IOException
+	 * */
+	public DataLog(File directory) throws IOException {
+		this.directory = directory;
+		if ( ! directory.isDirectory() && ! directory.mkdirs())
+			throw new IOException("Can not create data directory: " + directory);
+		Metrics.gauge("datalog.queue", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return queue.size();
+			}
+		});
+	}
+
+	/**
+	 * Reads all the segments in order. Broken or unfinished record at the end of a segment
+	 * (crash during write) is cut off. Records are given to the replay in the order of their numbers.
+	 * @param replay - receives the records.
+	 * @return Number of records read.
+	 * @throws IOException
+	 * */
+	public long replay(Replay replay) throws IOException {
+		long count = 0;
+		Reorder visits = new Reorder(replay), illnesses = new Reorder(replay);
+		for (File file : segmentFiles()) {
+			segmentNumber = Math.max(segmentNumber, segmentNumber(file));
+			long valid = 0;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				while (true)
+				{
+					byte[] body = readRecord(in);
+					if (body == null) break;
+					valid += RECORD_HEADER + body.length;
+					ByteBuffer b = ByteBuffer.wrap(body);
+					byte type = b.get();
+					if (type == SESSION) {
+						visits.startSession(b.getInt());
+						illnesses.startSession(b.getInt());
+						continue;
+					} else if (type == VISIT) {
+						visits.add(b.getInt(), body);
+					} else if (type == ILLNESS) {
+						illnesses.add(b.getInt(), body);
+					} else {
+						throw new IOException("Unknown record type " + type + " in " + file.getName());
+					}
+					count++;
+				}
+			}
+			if (valid < file.length()) {
+				ServerLog.log(ServerLog.WARN, "Data log: cutting broken end of {} at {}", file.getName(), valid);
+				try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+					raf.setLength(valid);
+				}
+			}
+		}
+		visits.flush();
+		illnesses.flush();
+		return count;
+	}
+
+	/**
+	 * Starts the writer thread. New records go to a new segment.
+	 * @param visits - number of the first visit that will be logged.
+	 * @param illnesses - number of the first illness that will be logged.
+	 * @throws IOException
+	 * */
+	public void start(int visits, int illnesses) throws IOException {
+		openNextSegment();
+		ByteBuffer session = ByteBuffer.allocate(9);
+		session.put(SESSION).putInt(visits).putInt(illnesses);
+		enqueue(session.array());
+		isWorking = true;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "kuwetex-data-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Writes everything that is waiting and stops the writer thread.
+	 * */
+	public void close() {
+		isWorking = false;
+		if (writer == null) return;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Logs new litter box visit.
+	 * @param index - number of the visit in the Data Bank.
+	 * */
+	public void appendVisit(int index, String name, String eyes, int grams, long time, HealthStatus health, long timestamp) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(VISIT);
+			out.writeInt(index);
+			out.writeUTF(name); out.writeUTF(eyes);
+			out.writeInt(grams);
+			out.writeLong(time);
+			out.writeByte(health.getCode());
+			out.writeLong(timestamp);
+			enqueue(bytes.toByteArray());
+		} catch (IOException e) {
+			ServerLog.log(ServerLog.ERROR, "Data log: visit can not be encoded.", e); // not possible for the byte array
+		}
+	}
+
+	/**
+	 * Logs new illness.
+	 * @param index - number of the illness in the Data Bank.
+	 * */
+	public void appendIllness(int index, String catName, long date, String recommendation) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(ILLNESS);
+			out.writeInt(index);
+			out.writeUTF(catName); out.writeLong(date); out.writeUTF(recommendation);
+			enqueue(bytes.toByteArray());
+		} catch (IOException e) {
+			ServerLog.log(ServerLog.ERROR, "Data log: illness can not be encoded.", e);
+		}
+	}
+
+	/**
+	 * Puts the record into the queue of the writer, waiting while the queue is full.
+	 * An interrupt does not stop the waiting, the record is still logged and the interrupt
+	 * is set again afterwards. Only if the writer has stopped, the record is lost; it is counted
+	 * in datalog.lost.
+	 * */
+	private void enqueue(byte[] body) {
+		boolean interrupted = false;
+		try {
+			while (true)
+			{
+				try {
+					if (queue.offer(body, 100, TimeUnit.MILLISECONDS)) return;
+					if (writer != null && ! writer.isAlive()) break; // nobody takes it
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+		lost.increment();
+		ServerLog.log(ServerLog.ERROR, "Data log: writer has stopped, a record was not saved.");
+	}
+
+	/**
+	 * Group commit: one write and one fsync for all the records that are waiting.
+	 * */
+	private void writeLoop() {
+		while (isWorking || ! queue.isEmpty())
+		{
+			try {
+				byte[] first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) continue;
+				batch.add(first);
+				queue.drainTo(batch, MAX_BATCH - 1);
+				long start = System.nanoTime();
+				writeBatch();
+				batchWrites.recordSince(start);
+				records.add(batch.size());
+			} catch (InterruptedException e) {
+				isWorking = false;
+			} catch (IOException e) {
+				lost.add(batch.size());
+				ServerLog.log(ServerLog.ERROR, "Data log: " + batch.size() + " records were not saved.", e);
+			} finally {
+				batch.clear();
+			}
+		}
+		if (segment == null) return; // the last segment could not be opened
+		try {
+			boolean empty = segment.size() == 0;
+			segment.force(true);
+			segment.close();
+			if (empty)
+				segmentFile.delete(); // nothing was added since the start
+		} catch (IOException e) {
+			ServerLog.log(ServerLog.ERROR, "Data log: last segment can not be closed.", e);
+		}
+	}
+
+	/**
+	 * Writes the batch at the end of the current segment. If the write fails, the part of the batch
+	 * that was written is cut off, so the next batches do not follow a broken record (replay stops
+	 * at the first broken record and would cut off everything after it). If the segment can not
+	 * be cut, the next batches go to a new segment.
+	 * @throws IOException if the batch was not saved.
+	 * */
+	private void writeBatch() throws IOException {
+		ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+		long size = 0;
+		CRC32 crc = new CRC32();
+		for (int i=0; i<buffers.length; i++) {
+			byte[] body = batch.get(i);
+			crc.reset();
+			crc.update(body, 0, body.length);
+			ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + body.length);
+			record.putInt(body.length).putInt((int) crc.getValue()).put(body).flip();
+			buffers[i] = record;
+			size += record.capacity();
+		}
+		if (segment != null && segment.size() > 0 && segment.size() + size > MAX_SEGMENT_SIZE) {
+			segment.force(true);
+			closeSegment();
+		}
+		if (segment == null)
+			openNextSegment(); // after a full segment or a failed one
+		long start = segment.position();
+		try {
+			long written = 0;
+			while (written < size)
+				written += segment.write(buffers);
+			segment.force(false);
+		} catch (IOException e) {
+			try {
+				segment.truncate(start);
+				segment.position(start);
+				segment.force(false);
+			} catch (IOException notCut) {
+				ServerLog.log(ServerLog.ERROR, "Data log: broken end of " + segmentFile.getName()
+						+ " can not be cut off, next records go to a new segment.", notCut);
+				closeSegment();
+			}
+			throw e;
+		}
+	}
+
+	private void openNextSegment() throws IOException {
+		segmentNumber++;
+		File file = new File(directory, String.format("%s%08d%s", PREFIX, segmentNumber, SUFFIX));
+		FileChannel channel = open(file);
+		channel.position(channel.size());
+		segmentFile = file;
+		segment = channel;
+	}
+
+	/**
+	 * Closes the current segment, the next batch opens a new one.
+	 * */
+	private void closeSegment() {
+		try {
+			segment.close();
+		} catch (IOException e) {
+			ServerLog.log(ServerLog.WARN, "Data log: " + segmentFile.getName() + " was not closed.", e);
+		}
+		segment = null;
+	}
+
+	/**
+	 * Opens a segment file for writing. Tests override it to make writes fail.
+	 * @param file - the segment file, it is created if it does not exist.
+	 * @throws IOException
+	 * */
+	FileChannel open(File file) throws IOException {
+		return new RandomAccessFile(file, "rw").getChannel();
+	}
+
+	/**
+	 * @return Body of the next record or null at the end of the segment or at a broken record.
+	 * */
+	private static byte[] readRecord(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if (length <= 0 || length > MAX_SEGMENT_SIZE) return null;
+			byte[] body = new byte[length];
+			in.readFully(body);
+			CRC32 crc = new CRC32();
+			crc.update(body, 0, length);
+			return (int) crc.getValue() == checksum ? body : null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private static void decode(byte[] body, Replay replay) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		byte type = in.readByte();
+		in.readInt(); // number, the order is already restored
+		if (type == VISIT) {
+			String name = in.readUTF(), eyes = in.readUTF();
+			int grams = in.readInt();
+			long time = in.readLong();
+			HealthStatus health = HealthStatus.fromCode(in.readByte());
+			replay.visit(name, eyes, grams, time, health, in.readLong());
+		} else {
+			replay.illness(in.readUTF(), in.readLong(), in.readUTF());
+		}
+	}
+
+	/**
+	 * Gives numbered records of one kind to the replay in the order of their numbers.
+	 * Records of one server session are at most a few places out of order.
+	 * If a record was lost in a crash, the following ones are given when the session ends.
+	 * */
+	private static class Reorder {
+		private final Replay replay;
+		private final TreeMap<Integer, byte[]> pending = new TreeMap<>();
+		private int next = 0;
+		
+		Reorder(Replay replay) {
+			this.replay = replay;
+		}
+		
+		void startSession(int first) throws IOException {
+			flush();
+			next = first;
+		}
+		
+		void add(int index, byte[] body) throws IOException {
+			if (index != next) {
+				pending.put(index, body);
+				return;
+			}
+			decode(body, replay);
+			next++;
+			while ( ! pending.isEmpty() && pending.firstKey() == next) {
+				decode(pending.pollFirstEntry().getValue(), replay);
+				next++;
+			}
+		}
+		
+		void flush() throws IOException {
+			while ( ! pending.isEmpty())
+				decode(pending.pollFirstEntry().getValue(), replay);
+		}
+	}
+	
+	private File[] segmentFiles() {
+		File[] files = directory.listFiles();
+		if (files == null) return new File[0];
+		List<File> segments = new ArrayList<>();
+		for (File f : files)
+			if (f.getName().startsWith(PREFIX) && f.getName().endsWith(SUFFIX) && segmentNumber(f) > 0)
+				segments.add(f);
+		File[] sorted = segments.toArray(new File[segments.size()]);
+		Arrays.sort(sorted); // numbers have fixed width
+		return sorted;
+	}
+
+	private static int segmentNumber(File file) {
+		String name = file.getName();
+		try {
+			return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
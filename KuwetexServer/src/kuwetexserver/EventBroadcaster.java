@@ -0,0 +1,144 @@
+package kuwetexserver;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import network.Message;
+
+/**
+ * Pushes new visits, illnesses and cleanings to the subscribed clients.
+ * The thread that caused the event only queues it, the text is rendered and sent by
+ * the broadcaster thread, so a slow client never stops a cat.
+ * At most MAX_QUEUED events wait for the broadcaster. When it can not keep up, new events are
+ * dropped and counted in events.dropped; a panel sees the missing visits as a gap in the sequence
+ * numbers and gets them with the next report. The sessions drop the events of a subscriber that
+ * does not read them in the same way, it is not disconnected for them.
+ * */
+class EventBroadcaster implements DataBank.Listener {
+	private static final int MAX_QUEUED = 8_192;
+	
+	private final SessionRegistry subscribers = new SessionRegistry();
+	private final LongAdder dropped = Metrics.counter("events.dropped");
+	private final ThreadPoolExecutor dispatcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "kuwetex-events");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	EventBroadcaster() {
+		Metrics.gauge("events.queue", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return dispatcher.getQueue().size();
+			}
+		});
+		Metrics.gauge("events.subscribers", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return subscribers.size();
+			}
+		});
+	}
+
+	/**
+	 * Adds the client to the subscribers and confirms it with a SUBSCRIBE message.
+	 * Sequence of the confirmation is the number of visits so far, the client gets the visits
+	 * added after it. The replies do not wait for space in the queue of the client, so a slow
+	 * client does not stop the broadcaster thread.
+	 * @param correlationId - correlation id of the request.
+	 * */
+	void subscribe(final ClientSession client, final int correlationId) {
+		boolean queued = dispatch(new Runnable() {
+			@Override
+			public void run() {
+				subscribers.register(client);
+				client.offerMessage(new Message("Subscribed.", Message.SUBSCRIBE,
+						KuwetexServer.getDataBank().getVisitCount(), correlationId));
+			}
+		});
+		if ( ! queued)
+			client.offerMessage(new Message("Error. Too many events are waiting, try again later.", Message.BUSY,
+					Message.NO_SEQUENCE, correlationId));
+	}
+	
+	/**
+	 * Queues the task for the broadcaster thread.
+	 * @return False if the queue is full, the task is dropped then.
+	 * */
+	private boolean dispatch(Runnable task) {
+		try {
+			dispatcher.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			dropped.increment();
+			return false;
+		}
+	}
+
+	/**
+	 * @return True if the message is an event pushed by the broadcaster.
+	 * */
+	static boolean isEvent(Message message) {
+		int header = message.getHEADER();
+		return header == Message.VISIT_EVENT || header == Message.ILLNESS_EVENT || header == Message.CLEANING_EVENT;
+	}
+
+	void unsubscribe(ClientSession client) {
+		subscribers.unregister(client);
+	}
+
+	@Override
+	public void visitAdded(final int index) {
+		if (subscribers.isEmpty()) return;
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				StringBuilder builder = new StringBuilder();
+				KuwetexServer.getDataBank().appendVisit(index, builder);
+				broadcast(new Message(builder.toString(), Message.VISIT_EVENT, index + 1));
+			}
+		});
+	}
+
+	@Override
+	public void illnessAdded(final int index) {
+		if (subscribers.isEmpty()) return;
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				StringBuilder builder = new StringBuilder();
+				KuwetexServer.getDataBank().appendIllness(index, builder);
+				broadcast(new Message(builder.toString(), Message.ILLNESS_EVENT));
+			}
+		});
+	}
+
+	/**
+	 * @param box - number of the litter box.
+	 * @param dirtiness - dirtiness level before cleaning.
+	 * @param forced - true = cleaning forced by user.
+	 * */
+	void cleaningDone(int box, int dirtiness, boolean forced) {
+		if (subscribers.isEmpty()) return;
+		final String text = "Litter box #" + box + " was cleaned" + (forced ? " by user" : "")
+				+ ". Dirtiness level was: " + dirtiness;
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				broadcast(new Message(text, Message.CLEANING_EVENT));
+			}
+		});
+	}
+
+	private void broadcast(Message message) {
+		subscribers.broadcast(message);
+	}
+}
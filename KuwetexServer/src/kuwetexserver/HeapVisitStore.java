@@ -0,0 +1,67 @@
+package kuwetexserver;
+
+import java.util.Date;
+
+import sensors.HealthStatus;
+import sensors.WeightSensor;
+
+/**
+ * Visits kept as objects on the heap. Default storage of the Data Bank.
+ * Values are kept as they were measured, the text is made only when a report is rendered.
+ * */
+class HeapVisitStore implements VisitStore {
+	private final AppendOnlyArray<Data> dataList = new AppendOnlyArray<>();
+	
+	private static class Data {
+		private final String catName;
+		private final String eyeColor;
+		private final long timeSpent;
+		private final long dateOfexcrection; // epoch ms
+		private final int grams;
+		private final HealthStatus health;
+		
+		/**
+		 * Constructor.
+		 * @param name - name of the cat.
+		 * @param eyes - eyes color of the cat.
+		 * @param grams - current cat weight (g).
+		 * @param time - the time of last defecation.
+		 * @param health - health status of the cat.
+		 * @param date - date of the defecation (epoch ms).
+		 * */
+		Data(String name, String eyes, int grams, long time, HealthStatus health, long date) {
+			catName = name; eyeColor = eyes; timeSpent = time; this.grams = grams; this.health = health;
+			dateOfexcrection = date;
+		}
+		
+		/**
+		 * Appends String representation of the informations about the cat, that are stored in the object.
+		 * */
+		void appendTo(StringBuilder builder) {
+			builder.append("* ").append(catName).append("; ").append(eyeColor).append(" eyes; weight: ")
+					.append(WeightSensor.format(grams)).append(";  ").append(timeSpent).append("ms, on day: ")
+					.append(new Date(dateOfexcrection).toString()).append(";\n").append(health);
+		}
+		
+		/**
+		 * Overridden method.
+		 * @return String representation of the informations about the cat, that are stored in the object.
+		 * */
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			appendTo(builder);
+			return builder.toString();
+		}
+	}
+	
+	@Override
+	public void set(int index, String name, String eyes, int grams, long time, HealthStatus health, long timestamp) {
+		dataList.set(index, new Data(name, eyes, grams, time, health, timestamp));
+	}
+	
+	@Override
+	public void appendTo(int index, StringBuilder builder) {
+		dataList.get(index).appendTo(builder);
+	}
+}
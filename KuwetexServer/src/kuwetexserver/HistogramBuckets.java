@@ -0,0 +1,49 @@
+package kuwetexserver;
+
+/**
+ * Buckets of the histograms (HDR style). Every power of two is split into SUB_BUCKETS buckets
+ * of the same width, so a bucket is never wider than 1/SUB_BUCKETS of its values and the error
+ * of a percentile read from the histogram is below that too. Values below SUB_BUCKETS have
+ * their own buckets.
+ * */
+final class HistogramBuckets {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private HistogramBuckets() {
+	}
+
+	/**
+	 * @param maxValue - the biggest value that will be recorded.
+	 * @return Number of the buckets for values 0..maxValue.
+	 * */
+	static int count(long maxValue) {
+		if (maxValue < SUB_BUCKETS)
+			return (int) maxValue + 1;
+		return bucketOf(maxValue) + 1;
+	}
+
+	/**
+	 * @param value - value, not negative.
+	 * @return Bucket of the value.
+	 * */
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) Math.max(value, 0);
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) - SUB_BUCKETS;
+		return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return Middle of the bucket.
+	 * */
+	static long valueOf(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+		int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BITS);
+		return (SUB_BUCKETS + sub) * width + width / 2;
+	}
+}
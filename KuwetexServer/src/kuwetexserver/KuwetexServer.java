@@ -1,15 +1,23 @@
 package kuwetexserver;
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Random;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import network.Message;
 import other.Cat;
+import other.RandomSource;
 import sensors.*;
 
 /**
@@ -18,30 +26,135 @@ import sensors.*;
  * */
 public class KuwetexServer {
 	private static volatile int idCounter = 0;
-	private static volatile int litterBoxDirtiness = 0;
-	private static final int MAX_DIRTINESS_LEVEL = 7;
-	public static final Random random = new Random();
+	private static volatile RandomSource random = new RandomSource(); // seeded by --seed
 	public static final int ROLL = 5_000; // for random time generation
 	//public static final String Separator = ";";
 	
-	private Map<Integer, Socket> clientMap;
+	private final SessionRegistry sessions = new SessionRegistry(); // logged in clients
 	private boolean isWorking = false;
-	private ServerSocket serverSocket;
+	private ServerSocket serverSocket = null;
+	private NioServer nioServer = null;
+	private final ExecutorService executor; // runs clients and cats
+	private final int cats;
+	private final LoadGenerator loadGenerator; // null if the usual cats are run
 	
 	private static final DataBank dataBank = new DataBank();
-	private static final Lock lock = new ReentrantLock();
+	private static volatile LitterBoxDispatcher litterBoxes = new LitterBoxDispatcher(1);
+	private static final EventBroadcaster events = new EventBroadcaster();
+	private static volatile CleaningScheduler cleaning = new CleaningScheduler(litterBoxes, events);
 	
-	// sensors
-	private static final AbstractSensor eyeSensor = new EyeSensor(),
-								weightMachine = new WeightSensor(),
-								nameRecognization = new NameSensor(),
-								healtChecker = new HealthSensor();
+	// sensors, examine the cats in parallel while they go to the litter box
+	private static final ThreadPoolExecutor sensorThreads = newSensorThreads();
+	private static final SensorPipeline sensors = new SensorPipeline(sensorThreads);
+	private static final LatencyHistogram readingTimes = Metrics.histogram("sensors.reading");
+	private static final LongAdder failedReadings = Metrics.counter("sensors.failed");
+	
+	static {
+		sensors.addStage(new SensorPipeline.Stage() {
+			@Override
+			public void accept(Cat cat, SensorReading reading) {
+				if (reading.getHealth().isIll()) {
+					dataBank.addNewIllCat(reading.getName(), reading.getDate(), cat.getRandom());
+					ServerLog.log(ServerLog.INFO, "Cat {} is ill. Added new prescriptions to Data Bank.", reading.getName());
+				}
+				if (reading.getHealth().isPregnant())
+					ServerLog.log(ServerLog.INFO, "Urine examination proved that cat {} is pregnant.", reading.getName());
+			}
+		});
+		Metrics.gauge("sensors.queue", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return sensorThreads.getQueue().size();
+			}
+		});
+	}
 	
 	// constructor
 	public KuwetexServer() throws IOException {
-		clientMap = new HashMap<>();
-		serverSocket = new ServerSocket(Message.PORT);
+		this(new ServerOptions(new String[0]));
 	}
+	
+	/**
+	 * Registers the gauges of the server and shows the metrics in JMX.
+	 * */
+	private void registerMetrics() {
+		Metrics.gauge("clients.online", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return sessions.size();
+			}
+		});
+		Metrics.gauge("log.queue", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return ServerLog.getQueueDepth();
+			}
+		});
+		Metrics.gauge("log.dropped", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return ServerLog.getDroppedCount();
+			}
+		});
+		Metrics.registerMBean();
+	}
+	
+	/**
+	 * Constructor.
+	 * @param options - launch options. Decides which connection engine and which kind of threads are used.
+	 * @throws IOException
+	 * */
+	public KuwetexServer(ServerOptions options) throws IOException {
+		ServerLog.configure(options.getLogLevel(), options.getLogFile());
+		if (options.getLogFile() != null)
+			System.out.println("Log of the server: " + options.getLogFile().getAbsolutePath());
+		if (options.getSeed() != null)
+			random = new RandomSource(options.getSeed());
+		RequestHandler.setHeavyRequestLimit(options.getHeavyRequests());
+		registerMetrics();
+		executor = TaskExecutors.newExecutor(options.getThreads());
+		cats = options.getCats();
+		loadGenerator = options.getLoadCats() > 0 ? new LoadGenerator(options) : null;
+		litterBoxes = new LitterBoxDispatcher(options.getLitterBoxes());
+		cleaning = new CleaningScheduler(litterBoxes, events);
+		if (loadGenerator != null)
+			cleaning.setClockSpeed(options.getLoadSpeed());
+		if (options.getStorage().equals(ServerOptions.STORAGE_MAPPED)) {
+			File dir = options.getDataDirectory() != null
+					? new File(options.getDataDirectory(), "visits")
+					: Files.createTempDirectory("kuwetex-visits").toFile();
+			dataBank.useMappedStorage(dir);
+		}
+		if (options.getDataDirectory() != null)
+			openDataLog(options.getDataDirectory());
+		dataBank.setListener(events); // only new records are pushed to the subscribers
+		if (options.getMode().equals(ServerOptions.MODE_NIO)) {
+			// with virtual threads every request gets its own thread, otherwise a fixed pool is used
+			ExecutorService workers = options.getThreads().equals(ServerOptions.THREADS_VIRTUAL)
+					? executor : Executors.newFixedThreadPool(options.getWorkerThreads());
+			nioServer = new NioServer(Message.PORT, sessions, options.getEventLoops(), workers);
+		} else {
+			serverSocket = new ServerSocket(Message.PORT);
+		}
+	}
+	/**
+	 * Loads the saved history into the Data Bank and keeps saving new records.
+	 * Records waiting for the disk are written when the server is shut down.
+	 * @param directory - directory of the data log.
+	 * @throws IOException
+	 * */
+	private static void openDataLog(File directory) throws IOException {
+		final DataLog log = new DataLog(directory);
+		long records = dataBank.attachLog(log);
+		ServerLog.log(ServerLog.INFO, "Loaded {} records from {}", records, directory);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				log.close();
+			}
+		}));
+	}
+	
 	/**
 	 * Starts the server.
 	 * Allows clients to connect.
@@ -49,71 +162,156 @@ public class KuwetexServer {
 	 * */
 	public void startServer() {
 		isWorking = true;		
-		// clearness monitor thread
-		new Thread(new CleaningSystemRunnable()).start();
+		// clearness monitor, cleans when a box gets dirty
+		cleaning.start();
 		
-		// creating virtual cats
-		for (int i=0; i<Cat.NAMES.length; i++) {
-			Thread t = new Thread(new Cat(i, i));
-			t.start();
+		// creating virtual cats, or simulated ones for a load test
+		if (loadGenerator != null) {
+			Thread load = new Thread(loadGenerator, "kuwetex-load");
+			load.setDaemon(true);
+			load.start();
+		} else {
+			for (int i=0; i<cats; i++) {
+				int n = i % Cat.NAMES.length;
+				executor.execute(new Cat(n, n));
+			}
+		}
+		ServerLog.log(ServerLog.INFO, "server started");
+		if (nioServer != null) {
+			nioServer.run(idCounter); // selector based, no thread per client
+			ServerLog.log(ServerLog.INFO, "server closed");
+			return;
 		}
-		System.out.println("server started");		
 		while (isWorking)
 		{
 			try {
 				Socket socket = serverSocket.accept();
-				System.out.println("New connection!");
+				ServerLog.log(ServerLog.INFO, "New connection!");
 				// new client thread
-				Thread t = new Thread(new ClientWorker(socket, idCounter++, clientMap));
-				t.start();
+				executor.execute(new ClientWorker(socket, idCounter++, sessions, executor));
 			} catch (IOException e) {
-				e.printStackTrace();
+				ServerLog.log(ServerLog.ERROR, "Can not accept the connection.", e);
 			}
 		}
-		System.out.println("server closed");
+		ServerLog.log(ServerLog.INFO, "server closed");
 	}
 	
 	/**
 	 * When cat thread wants to use litter box, the method is used.
-	 * It is thread safety. Method has inner ReentrantLock.
+	 * It is thread safety. The dispatcher gives the cat a free box or the least busy one,
+	 * cats in other boxes do not wait.
 	 * @throws InterruptedException
 	 * */
 	public static void useLitterBox(Cat cat) throws InterruptedException {
-		String eyes = eyeSensor.examine(cat);
-		String weight = weightMachine.examine(cat);
-		String name = nameRecognization.examine(cat);
-		String healthStatus = healtChecker.examine(cat);
+		CompletableFuture<SensorReading> reading = examine(cat, System.currentTimeMillis());
 		
-		int time = random.nextInt(ROLL);
+		int time = cat.getRandom().nextInt(ROLL);
 		long t0, t1;
-		lock.lock(); // only one cat can use litter box
+		LitterBox box = litterBoxes.enter(); // only one cat can use a litter box
 		try {
 			t0 = System.currentTimeMillis();
-			System.out.println("Cat "+name+" has entered.");
+			ServerLog.log(ServerLog.DEBUG, "Cat {} has entered litter box #{}.", cat.getName(), box.getNumber());
 			Thread.sleep(time);
 			t1 = System.currentTimeMillis();
-			litterBoxDirtiness += random.nextInt(2) + 1; // 1=small poop, 2=big poop
+			int dirt = cat.getRandom().nextInt(2) + 1; // 1=small poop, 2=big poop
+			cleaning.dirtAdded(box, box.addDirt(dirt), dirt);
 		} finally {
-			lock.unlock();
+			box.exit();
 		}
 		
 		// save data
-		System.out.println("Cat "+name+" has exited.");
+		ServerLog.log(ServerLog.DEBUG, "Cat {} has exited.", cat.getName());
 		// total time spent in litter box (t1-t0)
-		updateData((t1-t0), name, eyes, weight, healthStatus);
+		SensorReading r = awaitReading(cat, reading);
+		if (r != null)
+			updateData((t1-t0), r);
+	}
+	
+	/**
+	 * Visit of a simulated cat at the given time of the simulation clock. Everything is done as
+	 * in useLitterBox(), but the cat does not stay in the box: the time spent inside is only drawn
+	 * and recorded, so the simulation can run faster than real time.
+	 * @param cat - simulated cat.
+	 * @param now - time of the visit on the simulation clock (epoch ms).
+	 * @return Time (ms) the cat has spent in the box.
+	 * @throws InterruptedException
+	 * */
+	static int useLitterBox(Cat cat, long now) throws InterruptedException {
+		CompletableFuture<SensorReading> reading = examine(cat, now);
+		
+		int time = cat.getRandom().nextInt(ROLL);
+		LitterBox box = litterBoxes.enter();
+		try {
+			int dirt = cat.getRandom().nextInt(2) + 1;
+			cleaning.dirtAdded(box, box.addDirt(dirt), dirt);
+		} finally {
+			box.exit();
+		}
+		SensorReading r = awaitReading(cat, reading);
+		if (r != null)
+			dataBank.addNewRecord(r.getName(), r.getEyes(), r.getGrams(), time, r.getHealth(), now);
+		return time;
+	}
+	
+	/**
+	 * Starts the examination of the cat by the sensors.
+	 * @param date - date of the examination (epoch ms).
+	 * */
+	private static CompletableFuture<SensorReading> examine(Cat cat, long date) {
+		final long start = System.nanoTime();
+		CompletableFuture<SensorReading> reading = sensors.examine(cat, date);
+		reading.thenRun(new Runnable() {
+			@Override
+			public void run() {
+				readingTimes.recordSince(start);
+			}
+		});
+		return reading;
+	}
+	
+	/**
+	 * Waits for the reading of the sensors. They have been working while the cat was in the box,
+	 * so usually it is ready. A visit without a complete reading is not recorded, the failure
+	 * is logged and counted and the cat goes on.
+	 * @return The reading or null if a sensor has failed.
+	 * @throws InterruptedException
+	 * */
+	private static SensorReading awaitReading(Cat cat, CompletableFuture<SensorReading> reading) throws InterruptedException {
+		try {
+			return reading.get();
+		} catch (ExecutionException e) {
+			failedReadings.increment();
+			ServerLog.log(ServerLog.ERROR, "Sensors have failed, the visit of cat " + cat.getName() + " is not recorded.", e.getCause());
+			return null;
+		}
+	}
+	
+	/**
+	 * @return Pool of the sensor pipeline, one thread per processor. Sensors only compute.
+	 * */
+	private static ThreadPoolExecutor newSensorThreads() {
+		int threads = Runtime.getRuntime().availableProcessors();
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+			private final AtomicInteger number = new AtomicInteger(0);
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kuwetex-sensors-" + number.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
 
 	/**
 	 * After the cat used the litter box, this method updates data in the Data Bank.
-	 * @param name - name of the cat.
-	 * @param eyes - eyes color of the cat.
-	 * @param weight - current cat weight (kg).
 	 * @param timeSpent - the time of last defecation.
-	 * @param health - health status of the cat.
+	 * @param reading - what the sensors have read about the cat.
 	 * */
-	private static void updateData(long timeSpent, String name, String eyes, String weight, String health) {	
-		System.out.println("Updating history");
-		dataBank.addNewRecord(name, eyes, weight, timeSpent, health);
+	private static void updateData(long timeSpent, SensorReading reading) {	
+		ServerLog.log(ServerLog.DEBUG, "Updating history");
+		dataBank.addNewRecord(reading.getName(), reading.getEyes(), reading.getGrams(), timeSpent, reading.getHealth());
 	}
 	
 	/**
@@ -125,48 +323,32 @@ public class KuwetexServer {
 	}
 	
 	/**
-	 * Thread that checks whether the litter box is dirty and needs cleaning.
-	 * */
-	private class CleaningSystemRunnable implements Runnable {
-		@Override
-		public void run() {
-			while (true)
-			{
-				try {
-					clearLitterBox(false); // not forced
-					Thread.sleep(8_000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-		
-	}
-		
-	/**
-	 * Clears the litter box. Waits if cat is inside.
-	 * It can be triggered for the user or by the cleaning monitor thread.
+	 * Clears the litter boxes. Forced cleaning waits until all the boxes are clean.
+	 * Only the box that is being cleaned is locked, cats can use the other boxes.
+	 * It can be triggered for the user or by the cleaning system.
 	 * Method is thread safe.
-	 * @param forcedClean - true = cleaning forced by user, false = triggered by cleaning thread.
+	 * @param forcedClean - true = cleaning forced by user, false = only boxes dirty over the limit are cleaned.
 	 * */
 	public static void clearLitterBox(boolean forcedClean) throws InterruptedException {
-		lock.lock(); // There can not be any cat inside during cleaning process
+		if ( ! forcedClean) {
+			cleaning.sweep();
+			return;
+		}
 		try {
-			if ( (litterBoxDirtiness >= MAX_DIRTINESS_LEVEL) || forcedClean) {
-				if (forcedClean) {
-					System.out.println("Cleaning is forced by user.");
-				}				
-				System.out.println("Cleaning process is running. Dirtiness level: "+litterBoxDirtiness);
-				litterBoxDirtiness = 0;
-				Thread.sleep(random.nextInt(ROLL)); // cleaning time
-			} else {
-				System.out.println("CLEANING SYSTEM: Dirtness at normal level. Not cleaning.");
-			}
-		} finally {
-			lock.unlock();			
+			forceCleaning().get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Cleaning failed.", e.getCause());
 		}
 	}
 	
+	/**
+	 * Queues cleaning of all the litter boxes forced by the user and does not wait for it.
+	 * @return Future that is done when all the boxes are clean.
+	 * */
+	static CompletableFuture<Void> forceCleaning() {
+		return cleaning.forceCleaning();
+	}
+	
 	/**
 	 * @return Instance of the DataBank.
 	 * */
@@ -175,11 +357,25 @@ public class KuwetexServer {
 	}
 	
 	/**
-	 * @param args - no needed
+	 * @return Source of the random numbers. Every thread and every cat has its own generator from it.
+	 * */
+	public static RandomSource getRandom() {
+		return random;
+	}
+	
+	/**
+	 * @return Broadcaster of the events for the subscribed clients.
+	 * */
+	static EventBroadcaster getEvents() {
+		return events;
+	}
+	
+	/**
+	 * @param args - launch options, see ServerOptions. Example: --mode=nio --event-loops=2
 	 * @throws IOException 
 	 */
 	public static void main(String[] args) throws IOException {
-		new KuwetexServer().startServer();
+		new KuwetexServer(new ServerOptions(args)).startServer();
 	}
 
 }
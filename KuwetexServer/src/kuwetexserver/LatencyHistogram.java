@@ -0,0 +1,114 @@
+package kuwetexserver;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations (ns) for the metrics. Many threads can record at the same time without locks.
+ * Values are counted in HistogramBuckets, so the memory does not depend on the number of values
+ * and percentiles are read with an error below 1/16.
+ * */
+public final class LatencyHistogram {
+	private static final long MAX_VALUE = TimeUnit.MINUTES.toNanos(10); // longer durations are counted as this
+	private static final int BUCKETS = HistogramBuckets.count(MAX_VALUE);
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicLong sum = new AtomicLong(0);
+	private final AtomicLong max = new AtomicLong(0);
+
+	LatencyHistogram() {
+	}
+
+	/**
+	 * @param nanos - duration (ns).
+	 * */
+	public void record(long nanos) {
+		long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+		counts.incrementAndGet(HistogramBuckets.bucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while (value > (m = max.get()) && ! max.compareAndSet(m, value));
+	}
+
+	/**
+	 * Records the time since the start.
+	 * @param start - System.nanoTime() at the start.
+	 * */
+	public void recordSince(long start) {
+		record(System.nanoTime() - start);
+	}
+
+	/**
+	 * @return Number of the recorded durations.
+	 * */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @param percentile - for example 99.
+	 * @return The duration (ns) that the given percent of the recorded ones do not exceed. 0 if nothing was recorded.
+	 * */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int b=0; b<BUCKETS; b++)
+			total += snapshot[b] = counts.get(b);
+		return percentile(snapshot, total, percentile);
+	}
+
+	private static long percentile(long[] snapshot, long total, double percentile) {
+		if (total == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total)), seen = 0;
+		for (int b=0; b<snapshot.length; b++) {
+			seen += snapshot[b];
+			if (seen >= rank)
+				return HistogramBuckets.valueOf(b);
+		}
+		return MAX_VALUE;
+	}
+
+	/**
+	 * Appends count, mean, percentiles and max in microseconds.
+	 * */
+	void appendTo(StringBuilder builder) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int b=0; b<BUCKETS; b++)
+			total += snapshot[b] = counts.get(b);
+		builder.append("count ").append(total);
+		if (total == 0) return;
+		builder.append(", mean ").append(micros(sum.get() / Math.max(1, count.get())));
+		for (int p=0; p<PERCENTILES.length; p++)
+			builder.append(", ").append(PERCENTILE_NAMES[p]).append(' ')
+					.append(micros(Math.min(percentile(snapshot, total, PERCENTILES[p]), max.get())));
+		builder.append(", max ").append(micros(max.get())).append(" us");
+	}
+
+	/**
+	 * Puts count, mean, percentiles and max (in microseconds) into the map, for JMX.
+	 * @param name - name of the histogram, the values are name.count, name.p99_us, ...
+	 * */
+	void putValues(String name, Map<String, Long> values) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int b=0; b<BUCKETS; b++)
+			total += snapshot[b] = counts.get(b);
+		values.put(name + ".count", total);
+		values.put(name + ".mean_us", total == 0 ? 0 : sum.get() / Math.max(1, count.get()) / 1000);
+		for (int p=0; p<PERCENTILES.length; p++)
+			values.put(name + "." + PERCENTILE_NAMES[p] + "_us", Math.min(percentile(snapshot, total, PERCENTILES[p]), max.get()) / 1000);
+		values.put(name + ".max_us", max.get() / 1000);
+	}
+
+	private static String micros(long nanos) {
+		return nanos < 10_000 ? String.format(Locale.ROOT, "%.1f", nanos / 1000.0) : Long.toString(nanos / 1000);
+	}
+}
@@ -0,0 +1,121 @@
+package kuwetexserver;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One litter box. Only one cat can be inside, and nobody can be inside during cleaning.
+ * Dirtiness is changed only by the holder of the lock.
+ * */
+class LitterBox {
+	private final int NUMBER;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final AtomicInteger busy = new AtomicInteger(0); // cats inside or waiting
+	private volatile int dirtiness = 0;
+	private final AtomicBoolean cleaningScheduled = new AtomicBoolean(false);
+	private static final LatencyHistogram cleaningWaits = Metrics.histogram("litterbox.cleaning.wait");
+	
+	/**
+	 * Constructor.
+	 * @param number - number of the box, shown in the messages.
+	 * */
+	LitterBox(int number) {
+		NUMBER = number;
+	}
+	
+	/**
+	 * Enters the box if it is free.
+	 * @return True if the cat is inside.
+	 * */
+	boolean tryEnter() {
+		busy.incrementAndGet();
+		if (lock.tryLock()) return true;
+		busy.decrementAndGet();
+		return false;
+	}
+	
+	/**
+	 * Waits until the box is free and enters it.
+	 * @throws InterruptedException
+	 * */
+	void enter() throws InterruptedException {
+		busy.incrementAndGet();
+		try {
+			lock.lockInterruptibly();
+		} catch (InterruptedException e) {
+			busy.decrementAndGet();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Leaves the box. It can be called only by the cat that is inside.
+	 * */
+	void exit() {
+		busy.decrementAndGet();
+		lock.unlock();
+	}
+	
+	/**
+	 * Locks the box for cleaning. Waits if a cat is inside.
+	 * */
+	void lockForCleaning() {
+		long start = System.nanoTime();
+		lock.lock();
+		cleaningWaits.recordSince(start);
+	}
+	
+	void unlockAfterCleaning() {
+		lock.unlock();
+	}
+	
+	/**
+	 * Called by the cat that is inside.
+	 * @param dirt - 1=small poop, 2=big poop.
+	 * @return New dirtiness level.
+	 * */
+	int addDirt(int dirt) {
+		return dirtiness += dirt;
+	}
+	
+	/**
+	 * Sets the dirtiness to zero. It can be called only when the box is locked for cleaning.
+	 * @return Dirtiness level before cleaning.
+	 * */
+	int clean() {
+		int old = dirtiness;
+		dirtiness = 0;
+		cleaningScheduled.set(false);
+		return old;
+	}
+	
+	/**
+	 * Marks that the box does not wait for cleaning, its dirtiness stays as it is.
+	 * */
+	void cancelCleaning() {
+		cleaningScheduled.set(false);
+	}
+	
+	/**
+	 * @return True if the box was not waiting for cleaning before.
+	 * */
+	boolean markCleaningScheduled() {
+		return cleaningScheduled.compareAndSet(false, true);
+	}
+	
+	/**
+	 * @return Number of cats inside or waiting for the box.
+	 * */
+	int getBusy() {
+		return busy.get();
+	}
+	
+	int getDirtiness() {
+		return dirtiness;
+	}
+	
+	int getNumber() {
+		return NUMBER;
+	}
+}
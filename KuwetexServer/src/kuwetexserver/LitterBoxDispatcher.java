@@ -0,0 +1,55 @@
+package kuwetexserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends cats to the litter boxes. A cat goes to the first free box, searching from the box
+ * after the one given last time, so cats are spread over the boxes. If all boxes are taken,
+ * the cat waits for the box with the fewest cats inside or waiting.
+ * */
+class LitterBoxDispatcher {
+	private final LitterBox[] boxes;
+	private final AtomicInteger next = new AtomicInteger(0);
+	private final LatencyHistogram waits = Metrics.histogram("litterbox.wait"); // time of enter()
+	
+	/**
+	 * Constructor.
+	 * @param count - number of the litter boxes.
+	 * */
+	LitterBoxDispatcher(int count) {
+		boxes = new LitterBox[count];
+		for (int i=0; i<count; i++)
+			boxes[i] = new LitterBox(i + 1);
+	}
+	
+	/**
+	 * Finds a box for the cat and enters it. The cat has to call exit() on the box when it is done.
+	 * @return The box the cat is inside.
+	 * @throws InterruptedException
+	 * */
+	LitterBox enter() throws InterruptedException {
+		long waitStart = System.nanoTime();
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE) % boxes.length;
+		for (int i=0; i<boxes.length; i++) {
+			LitterBox box = boxes[(start + i) % boxes.length];
+			if (box.tryEnter()) {
+				waits.recordSince(waitStart);
+				return box;
+			}
+		}
+		LitterBox leastBusy = boxes[start];
+		for (LitterBox box : boxes)
+			if (box.getBusy() < leastBusy.getBusy())
+				leastBusy = box;
+		leastBusy.enter();
+		waits.recordSince(waitStart);
+		return leastBusy;
+	}
+	
+	/**
+	 * @return All the boxes.
+	 * */
+	LitterBox[] getBoxes() {
+		return boxes;
+	}
+}
@@ -0,0 +1,182 @@
+package kuwetexserver;
+
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import other.Cat;
+
+/**
+ * Load generator for capacity tests. Simulates many cats without a thread per cat and without
+ * sleeping: every cat only knows the time of its next visit on the simulation clock, and a few
+ * driver threads take the visits in the order of that clock. The clock goes SPEED times faster
+ * than real time or, with speed 0, as fast as the server can take the visits.
+ * Every cat has its own random numbers seeded from the seed of the run and its number, so a run
+ * with the same seed and the same number of cats gives every cat the same visits, readings and
+ * times, whatever the number of threads. The clock is set so that the simulation ends at the
+ * real time it finishes, so the history never has visits in the future.
+ * Throughput and the time the server takes for a visit are recorded in the metrics (load.*)
+ * and printed at the end.
+ * */
+class LoadGenerator implements Runnable {
+	private static final long PROGRESS_PERIOD = TimeUnit.SECONDS.toMillis(10);
+
+	private final int CATS;
+	private final long SEED;
+	private final int SPEED; // 0 = as fast as possible
+	private final long DURATION; // ms of the simulation clock
+	private final int THREADS;
+
+	private final LatencyHistogram latency = Metrics.histogram("load.visit"); // real time of one visit
+	private final LatencyHistogram lag = Metrics.histogram("load.lag"); // how late visits start, when paced
+	private final LongAdder visits = Metrics.counter("load.visits");
+	private AtomicLongArray reached; // simulation time reached by every driver
+	private long virtualStart, realStart;
+
+	/**
+	 * Simulated cat and the time of its next visit.
+	 * */
+	private static class SimulatedCat implements Comparable<SimulatedCat> {
+		final Cat CAT;
+		final int NUMBER;
+		long next;
+
+		SimulatedCat(Cat cat, int number, long next) {
+			CAT = cat; NUMBER = number; this.next = next;
+		}
+
+		@Override
+		public int compareTo(SimulatedCat other) {
+			int c = Long.compare(next, other.next);
+			return c != 0 ? c : Integer.compare(NUMBER, other.NUMBER);
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * @param options - launch options with the --load-* values.
+	 * */
+	LoadGenerator(ServerOptions options) {
+		CATS = options.getLoadCats();
+		SEED = options.getLoadSeed();
+		SPEED = options.getLoadSpeed();
+		DURATION = TimeUnit.MINUTES.toMillis(options.getLoadMinutes());
+		THREADS = Math.min(options.getLoadThreads(), CATS);
+	}
+
+	/**
+	 * @param number - number of the cat.
+	 * @return Seed of the cat. Seeds of the next cats are mixed (SplitMix64), so their random numbers
+	 * do not look alike.
+	 * */
+	private long seedOf(int number) {
+		long z = SEED + (number + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Runs the simulation, waits until it ends and prints the results.
+	 * */
+	@Override
+	public void run() {
+		realStart = System.currentTimeMillis();
+		// the simulation ends at the real time it finishes
+		virtualStart = realStart - DURATION + (SPEED == 0 ? 0 : DURATION / SPEED);
+		ServerLog.log(ServerLog.INFO, "Load test: {} cats, seed {}", CATS, SEED);
+		final long startNanos = System.nanoTime();
+		Thread[] drivers = new Thread[THREADS];
+		reached = new AtomicLongArray(THREADS);
+		for (int t=0; t<THREADS; t++) {
+			final int part = t;
+			drivers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drive(part);
+				}
+			}, "kuwetex-load-" + t);
+			drivers[t].setDaemon(true);
+			drivers[t].start();
+		}
+		try {
+			for (Thread driver : drivers)
+				while (driver.isAlive()) {
+					driver.join(PROGRESS_PERIOD);
+					if (driver.isAlive())
+						ServerLog.log(ServerLog.INFO, "Load test: {} visits, {} min of the simulation done",
+								visits.sum(), (clock() - virtualStart) / 60_000);
+				}
+		} catch (InterruptedException e) {
+			for (Thread driver : drivers)
+				driver.interrupt();
+			Thread.currentThread().interrupt();
+			return;
+		}
+		report(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Loop of one driver thread. It simulates the cats whose number modulo THREADS is the part.
+	 * */
+	private void drive(int part) {
+		PriorityQueue<SimulatedCat> cats = new PriorityQueue<>();
+		for (int n=part; n<CATS; n+=THREADS) {
+			Cat cat = new Cat(Cat.NAMES[n % Cat.NAMES.length] + "-" + n, Cat.EYES[n % Cat.EYES.length], seedOf(n));
+			cats.add(new SimulatedCat(cat, n, virtualStart + cat.nextBreak()));
+		}
+		long end = virtualStart + DURATION;
+		SimulatedCat next;
+		try {
+			while ((next = cats.poll()) != null && next.next < end)
+			{
+				if (SPEED > 0) {
+					long due = realStart + (next.next - virtualStart) / SPEED;
+					long now;
+					while ((now = System.currentTimeMillis()) < due)
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(due - now));
+					lag.record(TimeUnit.MILLISECONDS.toNanos(now - due));
+				}
+				long start = System.nanoTime();
+				int timeSpent = KuwetexServer.useLitterBox(next.CAT, next.next);
+				latency.recordSince(start);
+				visits.increment();
+				reached.lazySet(part, next.next);
+				next.next += timeSpent + next.CAT.nextBreak();
+				cats.add(next);
+			}
+		} catch (InterruptedException e) {
+			ServerLog.log(ServerLog.WARN, "Load test was interrupted.");
+		}
+		reached.set(part, Long.MAX_VALUE); // done, the others decide the clock
+	}
+
+	/**
+	 * @return Simulation time reached by the slowest driver.
+	 * */
+	private long clock() {
+		long min = Long.MAX_VALUE;
+		for (int t=0; t<reached.length(); t++)
+			min = Math.min(min, Math.max(reached.get(t), virtualStart));
+		return min;
+	}
+
+	private void report(long nanos) {
+		double seconds = nanos / 1e9;
+		long count = visits.sum();
+		StringBuilder builder = new StringBuilder();
+		builder.append(String.format(Locale.ROOT, "Load test done: %d cats, seed %d, %d min of the simulation in %.1f s (%.0fx real time).%n",
+				CATS, SEED, DURATION / 60_000, seconds, DURATION / 1000.0 / seconds));
+		builder.append(String.format(Locale.ROOT, "Visits: %d, %.0f per second.%n", count, count / seconds));
+		builder.append("Time of a visit: ");
+		latency.appendTo(builder);
+		if (SPEED > 0) {
+			builder.append(String.format("%nLate start of a visit: "));
+			lag.appendTo(builder);
+		}
+		ServerLog.log(ServerLog.INFO, builder.toString());
+	}
+}
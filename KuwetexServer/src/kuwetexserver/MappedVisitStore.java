@@ -0,0 +1,110 @@
+package kuwetexserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Date;
+
+import sensors.HealthStatus;
+import sensors.WeightSensor;
+
+/**
+ * Visits kept outside the heap in memory-mapped files, one fixed-width column per attribute:
+ * cat id, eye color code, weight (g), time spent (ms), date (epoch ms) and health code.
+ * Names and eye colors are stored once in dictionaries, health status as its code, so a visit costs
+ * 26 bytes of mapped memory and nothing on the heap. The text of a visit is built only
+ * when a report is rendered.
+ * The files are only a place for the columns, the durable copy of the history is the data log.
+ * They are created again at every start.
+ * */
+class MappedVisitStore implements VisitStore {
+	static final int ROWS_PER_CHUNK = 1 << 16;
+
+	// column offsets in the chunk file
+	private static final int CAT = 0,
+							 EYES = CAT + 4 * ROWS_PER_CHUNK,
+							 WEIGHT = EYES + 2 * ROWS_PER_CHUNK,
+							 DURATION = WEIGHT + 4 * ROWS_PER_CHUNK,
+							 TIMESTAMP = DURATION + 4 * ROWS_PER_CHUNK,
+							 HEALTH = TIMESTAMP + 8 * ROWS_PER_CHUNK,
+							 CHUNK_SIZE = HEALTH + 4 * ROWS_PER_CHUNK;
+
+	private final File directory;
+	private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[16]; // copied when a chunk is added
+	private final StringDictionary cats = new StringDictionary(),
+								   eyeColors = new StringDictionary();
+
+	/**
+	 * Constructor. Old chunk files in the directory are deleted.
+	 * @param directory - directory of the chunk files. It is created if it does not exist.
+	 * @throws IOException
+	 * */
+	MappedVisitStore(File directory) throws IOException {
+		this.directory = directory;
+		if ( ! directory.isDirectory() && ! directory.mkdirs())
+			throw new IOException("Can not create directory: " + directory);
+		File[] old = directory.listFiles();
+		if (old != null)
+			for (File f : old)
+				if (f.getName().startsWith("chunk-"))
+					f.delete();
+	}
+
+	@Override
+	public void set(int index, String name, String eyes, int grams, long time, HealthStatus health, long timestamp) {
+		int row = index % ROWS_PER_CHUNK;
+		MappedByteBuffer chunk = chunk(index / ROWS_PER_CHUNK);
+		chunk.putInt(CAT + 4 * row, cats.idOf(name));
+		chunk.putShort(EYES + 2 * row, (short) eyeColors.idOf(eyes));
+		chunk.putInt(WEIGHT + 4 * row, grams);
+		chunk.putInt(DURATION + 4 * row, (int) Math.min(time, Integer.MAX_VALUE));
+		chunk.putLong(TIMESTAMP + 8 * row, timestamp);
+		chunk.putInt(HEALTH + 4 * row, health.getCode());
+	}
+
+	@Override
+	public void appendTo(int index, StringBuilder builder) {
+		MappedByteBuffer chunk = chunks[index / ROWS_PER_CHUNK];
+		int row = index % ROWS_PER_CHUNK;
+		builder.append("* ").append(cats.valueOf(chunk.getInt(CAT + 4 * row)));
+		builder.append("; ").append(eyeColors.valueOf(chunk.getShort(EYES + 2 * row))).append(" eyes; ");
+		builder.append("weight: ").append(WeightSensor.format(chunk.getInt(WEIGHT + 4 * row)));
+		builder.append(";  ").append(chunk.getInt(DURATION + 4 * row));
+		builder.append("ms, on day: ").append(new Date(chunk.getLong(TIMESTAMP + 8 * row)).toString());
+		builder.append(";\n").append(HealthStatus.fromCode(chunk.getInt(HEALTH + 4 * row)));
+	}
+
+	private MappedByteBuffer chunk(int c) {
+		MappedByteBuffer[] current = chunks;
+		if (c < current.length && current[c] != null)
+			return current[c];
+		return addChunk(c);
+	}
+
+	/**
+	 * Maps new chunk file. Writers of different rows of the chunk meet here only once.
+	 * */
+	private synchronized MappedByteBuffer addChunk(int c) {
+		MappedByteBuffer[] current = chunks;
+		if (c < current.length && current[c] != null)
+			return current[c];
+		MappedByteBuffer[] table = Arrays.copyOf(current, Math.max(current.length, Integer.highestOneBit(c) * 2));
+		table[c] = newChunk(c);
+		chunks = table;
+		return table[c];
+	}
+
+	private MappedByteBuffer newChunk(int number) {
+		File file = new File(directory, String.format("chunk-%08d.col", number));
+		file.deleteOnExit();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(CHUNK_SIZE);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, CHUNK_SIZE); // stays valid after close
+		} catch (IOException e) {
+			throw new IllegalStateException("Can not map visit storage: " + file, e);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package kuwetexserver;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Registry of the server metrics: counters, gauges (values read when they are shown, for example
+ * the length of a queue) and latency histograms. Metrics are found by name and created on first use,
+ * the code that updates them keeps the reference, so updating costs no lookup.
+ * The metrics are sent to the clients (GET_METRICS) and shown in JMX as kuwetex:type=Metrics.
+ * */
+public final class Metrics {
+	public static final String JMX_NAME = "kuwetex:type=Metrics";
+
+	private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+	/**
+	 * Value that is read when the metrics are shown.
+	 * */
+	public interface Gauge {
+		long value();
+	}
+
+	/**
+	 * View of the registry for JMX.
+	 * */
+	private static class MBean implements MetricsMXBean {
+		@Override
+		public Map<String, Long> getValues() {
+			return Metrics.getValues();
+		}
+
+		@Override
+		public String getReport() {
+			StringBuilder builder = new StringBuilder();
+			appendTo(builder);
+			return builder.toString();
+		}
+	}
+
+	private Metrics() {
+	}
+
+	/**
+	 * @param name - name of the counter, for example "datalog.records".
+	 * @return The counter, created if it does not exist.
+	 * */
+	public static LongAdder counter(String name) {
+		LongAdder counter = counters.get(name);
+		if (counter == null) {
+			counters.putIfAbsent(name, new LongAdder());
+			counter = counters.get(name);
+		}
+		return counter;
+	}
+
+	/**
+	 * Registers the gauge. A gauge registered before with the same name is replaced.
+	 * @param name - name of the gauge, for example "clients.online".
+	 * */
+	public static void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * @param name - name of the histogram, for example "request.GET_RAPORT".
+	 * @return The histogram, created if it does not exist.
+	 * */
+	public static LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histograms.putIfAbsent(name, new LatencyHistogram());
+			histogram = histograms.get(name);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Appends all the metrics sorted by name, one per line. Durations are in microseconds.
+	 * */
+	public static void appendTo(StringBuilder builder) {
+		Map<String, Long> values = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> counter : counters.entrySet())
+			values.put(counter.getKey(), counter.getValue().sum());
+		for (Map.Entry<String, Gauge> gauge : gauges.entrySet())
+			values.put(gauge.getKey(), gauge.getValue().value());
+		for (Map.Entry<String, Long> value : values.entrySet())
+			builder.append(value.getKey()).append(" = ").append(value.getValue()).append("\n");
+		for (Map.Entry<String, LatencyHistogram> histogram : new TreeMap<>(histograms).entrySet()) {
+			builder.append(histogram.getKey()).append(": ");
+			histogram.getValue().appendTo(builder);
+			builder.append("\n");
+		}
+	}
+
+	/**
+	 * @return Values of all the metrics. A histogram gives name.count, name.mean_us, name.p50_us, ...
+	 * */
+	public static Map<String, Long> getValues() {
+		Map<String, Long> values = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> counter : counters.entrySet())
+			values.put(counter.getKey(), counter.getValue().sum());
+		for (Map.Entry<String, Gauge> gauge : gauges.entrySet())
+			values.put(gauge.getKey(), gauge.getValue().value());
+		for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet())
+			histogram.getValue().putValues(histogram.getKey(), values);
+		return values;
+	}
+
+	/**
+	 * Shows the metrics in JMX (JConsole, VisualVM) as kuwetex:type=Metrics. Can be called more than once.
+	 * */
+	static void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(JMX_NAME);
+			if ( ! ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), name);
+		} catch (JMException e) {
+			ServerLog.log(ServerLog.WARN, "Metrics can not be registered in JMX.", e);
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package kuwetexserver;
+
+import java.util.Map;
+
+/**
+ * Metrics of the server in JMX.
+ * */
+public interface MetricsMXBean {
+	/**
+	 * @return Values of all the metrics by name.
+	 * */
+	Map<String, Long> getValues();
+
+	/**
+	 * @return All the metrics as text, as they are sent for GET_METRICS.
+	 * */
+	String getReport();
+}
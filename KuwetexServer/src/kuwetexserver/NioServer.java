@@ -0,0 +1,170 @@
+package kuwetexserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Non-blocking connection engine of the server.
+ * Connections are accepted on the calling thread and spread over a small fixed number of
+ * event loops, each with its own Selector. Requests are handled by the worker executor,
+ * because some of them (forced cleaning) wait for the litter box.
+ * No thread is created per connection.
+ * */
+class NioServer {
+	private final ServerSocketChannel serverChannel;
+	private final SessionRegistry sessions;
+	private final EventLoop[] loops;
+	private final ExecutorService workers;
+	private volatile boolean isWorking = false;
+
+	/**
+	 * Constructor. Binds the server channel.
+	 * @param port - port of the server.
+	 * @param sessions - registry of the clients.
+	 * @param eventLoops - number of the event loop threads.
+	 * @param workers - executor that runs the request handling.
+	 * @throws IOException
+	 * */
+	NioServer(int port, SessionRegistry sessions, int eventLoops, ExecutorService workers) throws IOException {
+		this.sessions = sessions;
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		loops = new EventLoop[eventLoops];
+		for (int i=0; i<eventLoops; i++)
+			loops[i] = new EventLoop(i);
+		this.workers = workers;
+	}
+
+	/**
+	 * Starts the event loops and accepts connections until the server is stopped.
+	 * @param firstId - ID of the first client.
+	 * */
+	void run(int firstId) {
+		isWorking = true;
+		for (EventLoop loop : loops) {
+			Thread t = new Thread(loop, "kuwetex-event-loop-" + loop.index);
+			t.start();
+		}
+		int id = firstId;
+		int next = 0;
+		while (isWorking)
+		{
+			try {
+				SocketChannel channel = serverChannel.accept();
+				ServerLog.log(ServerLog.INFO, "New connection!");
+				loops[next].register(channel, id++);
+				next = (next + 1) % loops.length;
+			} catch (IOException e) {
+				if (isWorking) ServerLog.log(ServerLog.ERROR, "Can not accept the connection.", e);
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting connections and closes the event loops.
+	 * */
+	void stop() {
+		isWorking = false;
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+		}
+		for (EventLoop loop : loops)
+			loop.close();
+		workers.shutdown();
+	}
+
+	/**
+	 * Thread that reads and writes the channels registered in its selector.
+	 * */
+	class EventLoop implements Runnable {
+		private final int index;
+		private final Selector selector;
+		private final Queue<NioSession> registrations = new ConcurrentLinkedQueue<>();
+		private final Queue<NioSession> updateRequests = new ConcurrentLinkedQueue<>();
+
+		EventLoop(int index) throws IOException {
+			this.index = index;
+			selector = Selector.open();
+		}
+
+		/**
+		 * Passes new connection to this event loop.
+		 * */
+		void register(SocketChannel channel, int id) throws IOException {
+			channel.configureBlocking(false);
+			registrations.add(new NioSession(channel, id, sessions, this, workers));
+			selector.wakeup();
+		}
+
+		/**
+		 * Asks the loop to update the operations it waits for on the session: to write its queued bytes
+		 * or to pause or resume reading. Can be called from any thread.
+		 * */
+		void requestUpdate(NioSession session) {
+			updateRequests.add(session);
+			selector.wakeup();
+		}
+
+		void close() {
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (selector.isOpen())
+				{
+					selector.select();
+					registerNewSessions();
+					updateInterests();
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						NioSession session = (NioSession) key.attachment();
+						if (key.isValid() && key.isReadable())
+							session.onReadable();
+						if (key.isValid() && key.isWritable() && session.onWritable() && key.isValid())
+							key.interestOps(session.interestOps());
+					}
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				if (isWorking) ServerLog.log(ServerLog.ERROR, "Event loop failed.", e);
+			}
+		}
+
+		private void registerNewSessions() {
+			NioSession session;
+			while ((session = registrations.poll()) != null) {
+				try {
+					session.attach(session.getChannel().register(selector, SelectionKey.OP_READ, session));
+				} catch (IOException e) {
+					session.logOutUser();
+				}
+			}
+		}
+
+		private void updateInterests() {
+			NioSession session;
+			while ((session = updateRequests.poll()) != null) {
+				SelectionKey key = session.getKey();
+				if (key != null && key.isValid())
+					key.interestOps(session.interestOps());
+			}
+		}
+	}
+}
@@ -0,0 +1,376 @@
+package kuwetexserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import network.BinaryMessageCodec;
+import network.Message;
+import network.MessageCodec;
+import network.Protocol;
+
+/**
+ * Client connected to the non-blocking server.
+ * Bytes are read and written by the event loop that owns the channel. Requests are handled
+ * on the shared worker pool, one at a time per client, so responses keep the order of requests.
+ * Only requests with a correlation id that may be answered out of order are handled at once.
+ * If MAX_PENDING requests of the client wait or are being handled, the channel is not read until
+ * half of them are done, so a client that sends faster than it is answered fills its own socket
+ * buffer and not the memory of the server. A client that has MAX_OUTBOUND_BYTES queued and
+ * has not read any of them for SLOW_CLIENT_TIMEOUT is disconnected. Pushed events are not queued
+ * above MAX_OUTBOUND_BYTES, they are dropped and counted in events.dropped.
+ * */
+class NioSession implements ClientSession {
+	private static final int BUFFER_SIZE = 4 * 1024;
+	private static final int MAX_QUEUED_BYTES = 256 * 1024; // awaitCapacity waits above it
+	private static final int MAX_OUTBOUND_BYTES = 8 * 1024 * 1024; // the client may be disconnected above it
+	private static final long SLOW_CLIENT_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+	private static final int MAX_PENDING = 64; // requests, then reading is paused
+	private static final LongAdder slowClients = Metrics.counter("clients.dropped.slow");
+	private static final LongAdder droppedEvents = Metrics.counter("events.dropped");
+	private static final LongAdder allQueuedBytes = new LongAdder(); // of all the sessions, for the metrics
+
+	static {
+		Metrics.gauge("nio.outbound.bytes", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return allQueuedBytes.sum();
+			}
+		});
+	}
+
+	private final SocketChannel channel;
+	private final int ID;
+	private final SessionRegistry sessions;
+	private final RequestHandler handler;
+	private final NioServer.EventLoop loop;
+	private final Executor workers;
+	private SelectionKey key;
+
+	private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+	private MessageCodec codec = null; // detected from the first bytes of the client
+
+	// responses are encoded into the byte array and queued for the event loop
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+	private final AtomicLong queuedBytes = new AtomicLong(0);
+	private volatile long lastWrite = System.nanoTime(); // when the client last took some bytes
+	private final Object capacity = new Object(); // awaitCapacity waits on it
+
+	// messages waiting for the worker pool, guarded by inbox
+	private final Queue<Message> inbox = new ArrayDeque<>();
+	private boolean handling = false;
+	private final AtomicInteger pending = new AtomicInteger(0); // requests not handled yet
+	private volatile boolean readPaused = false;
+
+	/**
+	 * Constructor.
+	 * @param channel - connected channel of the client.
+	 * @param id - ID of the client.
+	 * @param sessions - registry of the clients.
+	 * @param loop - event loop that owns the channel.
+	 * @param workers - pool that runs the request handling.
+	 * */
+	NioSession(SocketChannel channel, int id, SessionRegistry sessions,
+			NioServer.EventLoop loop, Executor workers) {
+		this.channel = channel;
+		ID = id;
+		this.sessions = sessions;
+		handler = new RequestHandler(sessions);
+		this.loop = loop;
+		this.workers = workers;
+	}
+
+	void attach(SelectionKey key) {
+		this.key = key;
+	}
+
+	SelectionKey getKey() {
+		return key;
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	boolean hasOutbound() {
+		return ! outbound.isEmpty();
+	}
+
+	/**
+	 * @return Operations the event loop should wait for: reading unless it is paused,
+	 * writing if there are queued bytes.
+	 * */
+	int interestOps() {
+		return (readPaused ? 0 : SelectionKey.OP_READ) | (hasOutbound() ? SelectionKey.OP_WRITE : 0);
+	}
+
+	/**
+	 * Called by the event loop when the channel is readable.
+	 * Every complete message is passed to the worker pool.
+	 * */
+	void onReadable() {
+		try {
+			if (channel.read(in) < 0) {
+				logOutUser();
+				return;
+			}
+			in.flip();
+			if (codec == null && ! detectProtocol()) {
+				in.compact();
+				return;
+			}
+			Message message;
+			while ((message = codec.read(in)) != null)
+				enqueue(message);
+			in.compact();
+			if ( ! in.hasRemaining()) {
+				// message bigger than the buffer
+				ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+				in.flip();
+				bigger.put(in);
+				in = bigger;
+			}
+		} catch (ClassNotFoundException | IOException e) {
+			logOutUser();
+		}
+	}
+
+	/**
+	 * Called by the event loop when the channel is writable.
+	 * @return True if all queued bytes were written.
+	 * */
+	boolean onWritable() {
+		try {
+			ByteBuffer buffer;
+			while ((buffer = outbound.peek()) != null) {
+				if (channel.write(buffer) > 0)
+					lastWrite = System.nanoTime();
+				if (buffer.hasRemaining()) return false; // socket buffer is full
+				outbound.poll();
+				allQueuedBytes.add(-buffer.limit());
+				long queued = queuedBytes.addAndGet(-buffer.limit());
+				if (queued <= MAX_QUEUED_BYTES && queued + buffer.limit() > MAX_QUEUED_BYTES)
+					synchronized (capacity) {
+						capacity.notifyAll();
+					}
+			}
+		} catch (IOException e) {
+			logOutUser();
+		}
+		return true;
+	}
+
+	/**
+	 * Chooses the codec by the first bytes of the client and queues the stream header of the server.
+	 * @return False if not enough bytes were received yet.
+	 * */
+	private boolean detectProtocol() throws IOException {
+		MessageCodec detected = Protocol.detect(in);
+		if (detected == null) return false;
+		synchronized (bytes) {
+			detected.writeHeader(bytes);
+			queue(takeBytes());
+		}
+		codec = detected;
+		loop.requestUpdate(this);
+		return true;
+	}
+
+	/**
+	 * Requests that may be answered out of order go straight to the worker pool,
+	 * the others wait in the inbox for the previous ones.
+	 * */
+	private void enqueue(final Message message) {
+		if (pending.incrementAndGet() >= MAX_PENDING && ! readPaused) {
+			readPaused = true;
+			if (pending.get() <= MAX_PENDING / 2)
+				readPaused = false; // done meanwhile, the worker did not see the pause
+			else
+				key.interestOps(interestOps()); // called by the event loop
+		}
+		if (RequestHandler.canAnswerOutOfOrder(message)) {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (channel.isOpen())
+							handler.response(NioSession.this, message);
+					} finally {
+						done();
+					}
+				}
+			});
+			return;
+		}
+		synchronized (inbox) {
+			inbox.add(message);
+			if (handling) return;
+			handling = true;
+		}
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				handleInbox();
+			}
+		});
+	}
+
+	private void handleInbox() {
+		while (true)
+		{
+			Message message;
+			synchronized (inbox) {
+				message = inbox.poll();
+				if (message == null) {
+					handling = false;
+					return;
+				}
+			}
+			try {
+				if (channel.isOpen())
+					handler.response(this, message);
+			} finally {
+				done();
+			}
+		}
+	}
+
+	/**
+	 * Called when a request is handled. Resumes reading if it was paused
+	 * and half of the pending requests are done.
+	 * */
+	private void done() {
+		if (pending.decrementAndGet() <= MAX_PENDING / 2 && readPaused) {
+			readPaused = false;
+			loop.requestUpdate(this);
+		}
+	}
+
+	private ByteBuffer takeBytes() {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		bytes.reset();
+		return buffer;
+	}
+
+	@Override
+	public int getId() {
+		return ID;
+	}
+
+	@Override
+	public Socket getSocket() {
+		return channel.socket();
+	}
+
+	/**
+	 * Encodes the message and queues it for the event loop. With the binary protocol the frame is
+	 * queued as buffers, an encoded text (a report shared by many clients) is queued as views of its
+	 * segments and is not copied. Java serialization needs the stream of the codec, so its bytes are copied.
+	 * If the client has not read MAX_OUTBOUND_BYTES and does not read anything, it is too slow
+	 * and it is disconnected. An event is dropped when MAX_OUTBOUND_BYTES wait.
+	 * */
+	@Override
+	public void sendMessage(Message message) {
+		if (queuedBytes.get() > MAX_OUTBOUND_BYTES && EventBroadcaster.isEvent(message)) {
+			droppedEvents.increment();
+			return;
+		}
+		if (queuedBytes.get() > MAX_OUTBOUND_BYTES && System.nanoTime() - lastWrite > SLOW_CLIENT_TIMEOUT) {
+			dropSlowClient();
+			return;
+		}
+		synchronized (bytes) { // buffers of one frame are queued together
+			if (codec instanceof BinaryMessageCodec) {
+				for (ByteBuffer buffer : ((BinaryMessageCodec) codec).encode(message))
+					queue(buffer);
+			} else {
+				try {
+					codec.write(message);
+				} catch (IOException e) {
+					ServerLog.log(ServerLog.ERROR, "Error while sending message back to the client #" + ID, e);
+					return;
+				}
+				queue(takeBytes());
+			}
+		}
+		loop.requestUpdate(this);
+	}
+	
+	/**
+	 * Same as sendMessage, which never waits for the client.
+	 * */
+	@Override
+	public void offerMessage(Message message) {
+		sendMessage(message);
+	}
+	
+	private void queue(ByteBuffer buffer) {
+		if (queuedBytes.getAndAdd(buffer.limit()) == 0)
+			lastWrite = System.nanoTime(); // nothing was waiting, the client is not late
+		allQueuedBytes.add(buffer.limit());
+		outbound.add(buffer);
+		if ( ! channel.isOpen())
+			discardOutbound(); // the event loop will not write it
+	}
+	
+	private void discardOutbound() {
+		ByteBuffer buffer;
+		while ((buffer = outbound.poll()) != null)
+			allQueuedBytes.add(-buffer.limit());
+	}
+	
+	/**
+	 * Waits until the event loop has written enough of the queued bytes.
+	 * If the client takes nothing for SLOW_CLIENT_TIMEOUT, it is disconnected and the waiting ends.
+	 * */
+	@Override
+	public void awaitCapacity() throws InterruptedException {
+		synchronized (capacity) {
+			while (queuedBytes.get() > MAX_QUEUED_BYTES && channel.isOpen()) {
+				long late = System.nanoTime() - lastWrite;
+				if (late > SLOW_CLIENT_TIMEOUT) {
+					dropSlowClient();
+					return;
+				}
+				// closing the channel does not notify
+				capacity.wait(Math.min(1_000, TimeUnit.NANOSECONDS.toMillis(SLOW_CLIENT_TIMEOUT - late) + 1));
+			}
+		}
+	}
+
+	private void dropSlowClient() {
+		if ( ! channel.isOpen()) return;
+		slowClients.increment();
+		ServerLog.log(ServerLog.WARN, "Client #{} does not receive its messages, it is disconnected.", ID);
+		logOutUser();
+	}
+
+	/**
+	 * Closes the channel and deletes the user from the registry of the clients and from the subscribers.
+	 * */
+	@Override
+	public void logOutUser() {
+		KuwetexServer.getEvents().unsubscribe(this);
+		if (channel.isOpen())
+			try {
+				ServerLog.log(ServerLog.INFO, "Logging out user #{}", ID);
+				channel.close();
+			} catch (IOException e1) {
+			}
+		discardOutbound();
+		if (sessions.unregister(this))
+			ServerLog.log(ServerLog.INFO, "User #{} has disconnected. Online now: {}", ID, sessions.size());
+	}
+}
@@ -0,0 +1,142 @@
+package kuwetexserver;
+
+import java.util.Arrays;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Index of an append-only history by cat and by time. Records are put in buckets of one minute,
+ * ordered by time, one set of buckets for all the cats and one for every cat.
+ * A query reads only the buckets of its time range, so the cost depends on the number of
+ * records found, not on the size of the history.
+ * Records are added without locks, like to the history itself. A record has to be added before
+ * it is published by the Sequencer, queries skip the records that are not published.
+ * */
+class RecordIndex {
+	private static final long BUCKET_LENGTH = 60_000; // ms
+	private static final int[] NOTHING = new int[0];
+
+	private final ConcurrentSkipListMap<Long, Postings> byTime = new ConcurrentSkipListMap<>();
+	private final ConcurrentMap<String, ConcurrentSkipListMap<Long, Postings>> byCat = new ConcurrentHashMap<>();
+
+	/**
+	 * Numbers and times of the records in one bucket. Chunks get twice bigger every time,
+	 * so a bucket with a few records is small and no records are copied when it grows.
+	 * */
+	private static class Postings {
+		private static final int FIRST_CHUNK_BITS = 3;
+		private static final int FIRST_CHUNK = 1 << FIRST_CHUNK_BITS;
+
+		private final AtomicInteger size = new AtomicInteger(0);
+		private final AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<>(32 - FIRST_CHUNK_BITS);
+
+		private static class Chunk {
+			final int[] RECORDS; // number of the record + 1, 0 = slot is not set yet
+			final long[] TIMES;
+
+			Chunk(int length) {
+				RECORDS = new int[length]; TIMES = new long[length];
+			}
+		}
+
+		void add(int record, long time) {
+			int slot = size.getAndIncrement() + FIRST_CHUNK;
+			int c = 31 - Integer.numberOfLeadingZeros(slot) - FIRST_CHUNK_BITS;
+			Chunk chunk = chunks.get(c);
+			if (chunk == null) {
+				chunks.compareAndSet(c, null, new Chunk(FIRST_CHUNK << c));
+				chunk = chunks.get(c);
+			}
+			int offset = slot - (FIRST_CHUNK << c);
+			chunk.TIMES[offset] = time;
+			chunk.RECORDS[offset] = record + 1;
+		}
+
+		/**
+		 * Adds numbers of the records from the time range to the result.
+		 * @param published - records from this number on are skipped.
+		 * */
+		void collect(long from, long to, int published, Result result) {
+			int n = size.get() + FIRST_CHUNK;
+			for (int c = 0; (FIRST_CHUNK << c) < n; c++) {
+				Chunk chunk = chunks.get(c);
+				if (chunk == null) continue; // its writers have not finished yet
+				int length = Math.min(chunk.RECORDS.length, n - (FIRST_CHUNK << c));
+				for (int i=0; i<length; i++) {
+					int record = chunk.RECORDS[i] - 1;
+					if (record < 0 || record >= published) continue;
+					long time = chunk.TIMES[i];
+					if (time >= from && time < to)
+						result.add(record);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Growing list of record numbers.
+	 * */
+	private static class Result {
+		int[] records = new int[16];
+		int size = 0;
+
+		void add(int record) {
+			if (size == records.length)
+				records = Arrays.copyOf(records, size * 2);
+			records[size++] = record;
+		}
+	}
+
+	/**
+	 * Adds the record to the index. Many threads can add records at the same time.
+	 * @param record - number of the record, not published yet.
+	 * @param cat - name of the cat.
+	 * @param time - time of the record (epoch ms).
+	 * */
+	void add(int record, String cat, long time) {
+		Long bucket = Long.valueOf(Math.floorDiv(time, BUCKET_LENGTH));
+		postings(byTime, bucket).add(record, time);
+		ConcurrentSkipListMap<Long, Postings> catBuckets = byCat.get(cat);
+		if (catBuckets == null) {
+			byCat.putIfAbsent(cat, new ConcurrentSkipListMap<Long, Postings>());
+			catBuckets = byCat.get(cat);
+		}
+		postings(catBuckets, bucket).add(record, time);
+	}
+
+	private static Postings postings(ConcurrentSkipListMap<Long, Postings> buckets, Long bucket) {
+		Postings postings = buckets.get(bucket);
+		if (postings == null) {
+			Postings created = new Postings();
+			postings = buckets.putIfAbsent(bucket, created);
+			if (postings == null)
+				postings = created;
+		}
+		return postings;
+	}
+
+	/**
+	 * Finds the published records of the cat from the time range.
+	 * @param cat - name of the cat or null for all cats.
+	 * @param from - beginning of the time range (epoch ms, included).
+	 * @param to - end of the time range (epoch ms, not included).
+	 * @param published - number of the published records.
+	 * @return Numbers of the records found, in the order of the history.
+	 * */
+	int[] find(String cat, long from, long to, int published) {
+		NavigableMap<Long, Postings> buckets = cat == null ? byTime : byCat.get(cat);
+		if (buckets == null || from >= to)
+			return NOTHING;
+		Result result = new Result();
+		for (Postings postings : buckets.subMap(Math.floorDiv(from, BUCKET_LENGTH), true,
+				Math.floorDiv(to - 1, BUCKET_LENGTH), true).values())
+			postings.collect(from, to, published, result);
+		int[] records = Arrays.copyOf(result.records, result.size);
+		Arrays.sort(records);
+		return records;
+	}
+}
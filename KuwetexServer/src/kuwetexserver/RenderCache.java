@@ -0,0 +1,124 @@
+package kuwetexserver;
+
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import network.EncodedText;
+
+/**
+ * Rendered text of an append-only history, one line per record, encoded in UTF-8.
+ * The version of the history is the number of its records. The text is kept in segments of
+ * about SEGMENT_LENGTH characters. A full segment is encoded once and never changes, every
+ * later version shares it. When new records are added, only they are rendered, so a new version
+ * costs the new records and the last, unfinished segment, not the whole history.
+ * Only the newest MAX_KEPT_SEGMENTS full segments stay on the heap, so the cache does not grow with
+ * the history. Older ones are taken from the last text if a client still sends it, or rendered again.
+ * Requests for the same version get the same EncodedText while any of them still sends it, so many
+ * clients asking at once cost one rendering and its bytes are sent to all of them without copying.
+ * */
+class RenderCache {
+	private static final int SEGMENT_LENGTH = 64 * 1024; // chars
+	private static final int MAX_KEPT_SEGMENTS = 32; // newest full segments kept encoded, about 2-4 MB
+
+	/**
+	 * Renders one record of the history.
+	 * */
+	interface Renderer {
+		void append(int index, StringBuilder builder);
+	}
+
+	/**
+	 * Text of the first VERSION records. The text is not kept when no client sends it any more.
+	 * */
+	private static class Snapshot {
+		final int VERSION;
+		final WeakReference<EncodedText> TEXT;
+
+		Snapshot(int version, EncodedText text) {
+			VERSION = version; TEXT = new WeakReference<>(text);
+		}
+	}
+
+	private final Renderer renderer;
+	// guarded by this
+	private byte[][] segments = new byte[16][]; // full segments, null if it is not kept
+	private int[] starts = new int[16]; // first record of every full segment
+	private int segmentCount = 0;
+	private int tailStart = 0; // first record of the tail
+	private int rendered = 0; // records in the full segments and the tail
+	private final StringBuilder tail = new StringBuilder(); // records after the full segments
+	private WeakReference<byte[][]> last = new WeakReference<>(null); // segments of the last text
+	private int lastFull = 0; // full segments in the last text
+	private volatile Snapshot snapshot = new Snapshot(0, new EncodedText(new byte[0][]));
+
+	/**
+	 * Constructor.
+	 * @param renderer - renders the records.
+	 * */
+	RenderCache(Renderer renderer) {
+		this.renderer = renderer;
+	}
+
+	/**
+	 * @param version - number of the published records. They have to be complete.
+	 * @return Text of the records, it can contain records published later than the version.
+	 * */
+	EncodedText get(int version) {
+		Snapshot s = snapshot;
+		EncodedText text = s.VERSION >= version ? s.TEXT.get() : null;
+		if (text != null) return text;
+		synchronized (this) {
+			s = snapshot;
+			text = s.VERSION >= version ? s.TEXT.get() : null;
+			if (text != null) return text; // rendered by another request
+			while (rendered < version) {
+				renderer.append(rendered++, tail);
+				tail.append("\n");
+				if (tail.length() >= SEGMENT_LENGTH)
+					seal();
+			}
+			byte[][] bytes = new byte[segmentCount + (tail.length() > 0 ? 1 : 0)][];
+			byte[][] shared = last.get();
+			for (int i=0; i<segmentCount; i++)
+				bytes[i] = segments[i] != null ? segments[i] : shared != null && i < lastFull ? shared[i] : render(i);
+			last = new WeakReference<>(bytes);
+			lastFull = segmentCount;
+			if (tail.length() > 0)
+				bytes[segmentCount] = tail.toString().getBytes(StandardCharsets.UTF_8);
+			text = new EncodedText(bytes);
+			snapshot = new Snapshot(rendered, text);
+			return text;
+		}
+	}
+
+	/**
+	 * Encodes the tail as a new full segment and stops keeping the oldest kept one.
+	 * */
+	private void seal() {
+		if (segmentCount == segments.length) {
+			segments = Arrays.copyOf(segments, segmentCount * 2);
+			starts = Arrays.copyOf(starts, segmentCount * 2);
+		}
+		starts[segmentCount] = tailStart;
+		segments[segmentCount++] = tail.toString().getBytes(StandardCharsets.UTF_8);
+		if (segmentCount > MAX_KEPT_SEGMENTS)
+			segments[segmentCount - MAX_KEPT_SEGMENTS - 1] = null;
+		tail.setLength(0);
+		tailStart = rendered;
+	}
+
+	/**
+	 * Renders a full segment that is not kept. Records never change, so the bytes are
+	 * the same as when it was sealed.
+	 * */
+	private byte[] render(int segment) {
+		int end = segment + 1 < segmentCount ? starts[segment + 1] : tailStart;
+		StringBuilder builder = new StringBuilder(SEGMENT_LENGTH + SEGMENT_LENGTH / 4);
+		for (int i=starts[segment]; i<end; i++) {
+			renderer.append(i, builder);
+			builder.append("\n");
+		}
+		return builder.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
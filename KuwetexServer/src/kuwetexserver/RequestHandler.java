@@ -0,0 +1,324 @@
+package kuwetexserver;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import network.EncodedText;
+import network.Message;
+import network.Query;
+
+/**
+ * Does the action requested by the client and sends the response message back.
+ * It is shared by all the connection engines of the server, so the blocking and
+ * the non-blocking mode answer in exactly the same way.
+ * */
+class RequestHandler {
+	private static final int CHUNK_LENGTH = 64 * 1024; // characters of the report in one chunk
+	private static final long ADMISSION_WAIT = 50; // ms a heavy request waits for a permit before it is shed
+	
+	// requests that render much of the history, only this many of them run at once in the whole server
+	private static volatile Semaphore heavyRequests = new Semaphore(Runtime.getRuntime().availableProcessors());
+	private static final LongAdder shedRequests = Metrics.counter("requests.shed");
+	
+	// time of handling the requests of every header, created when the header comes first
+	private static final LatencyHistogram[] latencies = new LatencyHistogram[Message.GET_METRICS + 1];
+	
+	private final SessionRegistry sessions;
+	
+	/**
+	 * Constructor.
+	 * @param sessions - registry of the clients. Logged in clients are added to it.
+	 * */
+	RequestHandler(SessionRegistry sessions) {
+		this.sessions = sessions;
+	}
+	
+	/**
+	 * @param permits - number of the heavy requests (reports, recommendations, queries) that may run at once.
+	 * */
+	static void setHeavyRequestLimit(int permits) {
+		heavyRequests = new Semaphore(permits);
+	}
+	
+	/**
+	 * @return True if the request renders much of the history.
+	 * */
+	static boolean isHeavy(int header) {
+		switch (header) {
+		case Message.GET_RAPORT:
+		case Message.GET_RAPORT_SINCE:
+		case Message.GET_RAPORT_STREAM:
+		case Message.GET_RECOMMENDATIONS:
+		case Message.QUERY_VISITS:
+		case Message.QUERY_ILLNESSES:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * @param request - request that is not handled.
+	 * @param reason - text for the client.
+	 * @return BUSY response to the request.
+	 * */
+	static Message busy(Message request, String reason) {
+		shedRequests.increment();
+		return new Message("Error. " + reason, Message.BUSY, Message.NO_SEQUENCE, request.getCorrelationId());
+	}
+	
+	/**
+	 * Takes a permit for a heavy request, waiting a little if there is none.
+	 * @return True if the permit was taken.
+	 * */
+	private static boolean admit(Semaphore permits) {
+		try {
+			return permits.tryAcquire(ADMISSION_WAIT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * Sends the records added after the given sequence number in chunks of about CHUNK_LENGTH characters
+	 * and then RAPORT_END. Next chunk is rendered when the client has received most of the previous ones,
+	 * so only a few chunks are in memory at a time.
+	 * Only the first chunk is admitted like the other heavy requests, the next ones wait for a permit,
+	 * so a report that has started is finished.
+	 * @param request - GET_RAPORT_STREAM message. Its sequence is the number of records the client already has,
+	 * if it is greater than the history (server was restarted), all records are sent. Correlation id of
+	 * the request is given to all the chunks.
+	 * */
+	private void streamReport(ClientSession client, Message request) {
+		long sequence = request.getSequence();
+		int id = request.getCorrelationId();
+		DataBank dataBank = KuwetexServer.getDataBank();
+		int size = dataBank.getVisitCount();
+		int next = (sequence < 0 || sequence > size) ? 0 : (int) sequence;
+		Semaphore permits = heavyRequests;
+		if (next < size && ! admit(permits)) {
+			client.sendMessage(busy(request, "Too many reports and queries are being handled, try again later."));
+			return;
+		}
+		boolean admitted = true;
+		try {
+			while (next < size) {
+				// the permit is held only while a chunk is rendered, not while a slow client receives it
+				if ( ! admitted)
+					permits.acquire();
+				StringBuilder builder = new StringBuilder(CHUNK_LENGTH + CHUNK_LENGTH / 4);
+				int first = next;
+				try {
+					next = dataBank.appendRecords(first, size, CHUNK_LENGTH, builder);
+				} finally {
+					permits.release();
+					admitted = false;
+				}
+				client.awaitCapacity();
+				client.sendMessage(new Message(builder.toString(), Message.RAPORT_CHUNK, first, id));
+			}
+		} catch (InterruptedException e) {
+			client.logOutUser();
+			return;
+		}
+		client.sendMessage(new Message(null, Message.RAPORT_END, size, id));
+	}
+	
+	/**
+	 * Finds the visits or illnesses that match the query in the text of the message.
+	 * @param request - QUERY_VISITS or QUERY_ILLNESSES message.
+	 * @return Response with the records found. Sequence of the response is their number.
+	 * */
+	private static Message query(Message request) {
+		Query query;
+		try {
+			query = Query.fromText(request.getMessage());
+		} catch (IllegalArgumentException e) {
+			return new Message("Error. " + e.getMessage(), request.getHEADER(), Message.NO_SEQUENCE,
+					request.getCorrelationId());
+		}
+		StringBuilder builder = new StringBuilder();
+		DataBank dataBank = KuwetexServer.getDataBank();
+		int found = request.getHEADER() == Message.QUERY_VISITS
+				? dataBank.appendVisits(query.getCatName(), query.getFrom(), query.getTo(), builder)
+				: dataBank.appendIllnesses(query.getCatName(), query.getFrom(), query.getTo(), builder);
+		return new Message(builder.toString(), request.getHEADER(), found, request.getCorrelationId());
+	}
+	
+	/**
+	 * Requests that only read the history or wait for the cleaning can be handled at the same time
+	 * as the next requests of the client, if the client matches the responses by correlation id.
+	 * Logging in and out and subscribing change the state of the connection, they keep the order.
+	 * @param message - message from the client.
+	 * @return True if the response may be sent out of order.
+	 * */
+	static boolean canAnswerOutOfOrder(Message message) {
+		if (message.getCorrelationId() == Message.NO_CORRELATION) return false;
+		switch (message.getHEADER()) {
+		case Message.GET_RAPORT:
+		case Message.GET_RAPORT_SINCE:
+		case Message.GET_RAPORT_STREAM:
+		case Message.FORCE_CLEANING:
+		case Message.GET_RECOMMENDATIONS:
+		case Message.QUERY_VISITS:
+		case Message.QUERY_ILLNESSES:
+		case Message.GET_STATISTICS:
+		case Message.GET_METRICS:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Do some action and sends response message to the client.
+	 * The action depends on header of the message given as an argument.
+	 * The response has the correlation id of the request.
+	 * Time of handling the request is recorded in the metrics by its header. Responses that
+	 * are sent later (cleaning) are counted until the request is handed over.
+	 * Heavy requests get BUSY instead if too many of them run already. Their permit is held only
+	 * while the response is rendered, it is released before the response is queued for the client.
+	 * @param client - client that has sent the message.
+	 * @param message - message from the client.
+	 * */
+	void response(ClientSession client, Message message) {
+		long start = System.nanoTime();
+		int header = message.getHEADER();
+		ServerLog.log(ServerLog.DEBUG, "Message from client #{}: {}", client.getId(), message.getMessage());
+		try {
+			if (isHeavy(header) && header != Message.GET_RAPORT_STREAM) {
+				Semaphore permits = heavyRequests;
+				if ( ! admit(permits)) {
+					client.sendMessage(busy(message, "Too many reports and queries are being handled, try again later."));
+					return;
+				}
+				Message response;
+				try {
+					response = render(message);
+				} finally {
+					permits.release();
+				}
+				client.sendMessage(response);
+			} else {
+				handle(client, message);
+			}
+		} finally {
+			latencyOf(header).recordSince(start);
+		}
+	}
+	
+	private static LatencyHistogram latencyOf(int header) {
+		if (header < 0 || header >= latencies.length)
+			return Metrics.histogram("request.UNKNOWN");
+		LatencyHistogram latency = latencies[header];
+		if (latency == null) // a race only looks the same histogram up twice
+			latencies[header] = latency = Metrics.histogram("request." + Message.headerName(header));
+		return latency;
+	}
+	
+	/**
+	 * Renders the response to a heavy request, except GET_RAPORT_STREAM.
+	 * @param request - message from the client.
+	 * @return The response, it is not sent yet.
+	 * */
+	private static Message render(Message request) {
+		final int id = request.getCorrelationId();
+		switch (request.getHEADER()) {
+		case Message.GET_RAPORT: {
+			EncodedText raport = KuwetexServer.getDataBank().getReport();
+			return Message.encoded(raport, Message.GET_RAPORT, Message.NO_SEQUENCE, id);
+		}
+		case Message.GET_RAPORT_SINCE: {
+			StringBuilder builder = new StringBuilder();
+			long sequence = KuwetexServer.getDataBank().appendRecordsSince(request.getSequence(), builder);
+			return new Message(builder.toString(), Message.GET_RAPORT_SINCE, sequence, id);
+		}
+		case Message.GET_RECOMMENDATIONS: {
+			EncodedText recommendations = KuwetexServer.getDataBank().getEncodedPrescriptions();
+			return Message.encoded(recommendations, Message.GET_RECOMMENDATIONS, Message.NO_SEQUENCE, id);
+		}
+		case Message.QUERY_VISITS:
+		case Message.QUERY_ILLNESSES:
+			return query(request);
+		default:
+			throw new IllegalArgumentException("Not a heavy request: " + Message.headerName(request.getHEADER()));
+		}
+	}
+	
+	/**
+	 * Handles the requests that are not rendered by render(Message).
+	 * */
+	private void handle(ClientSession client, Message message) {
+		final int id = message.getCorrelationId();
+		switch (message.getHEADER()) {			
+		case Message.LOG_ME_IN: {
+			sessions.register(client); // add me to the registry
+			ServerLog.log(ServerLog.INFO, "Online now: {}", sessions.size());
+			message = new Message("You are connected.", Message.LOG_ME_IN, Message.NO_SEQUENCE, id);
+			client.sendMessage(message);
+			break;
+		}
+		case Message.LOG_OUT: {
+			client.logOutUser();
+			break;
+		}
+		case Message.GET_RAPORT_STREAM: {
+			streamReport(client, message);
+			break;
+		}
+		case Message.FORCE_CLEANING: {
+			if (canAnswerOutOfOrder(message)) {
+				// no thread waits for the cleaning, the response is sent when it is done,
+				// by the cleaning thread, which must not wait for a slow client
+				final ClientSession c = client;
+				KuwetexServer.forceCleaning().whenComplete(new BiConsumer<Void, Throwable>() {
+					@Override
+					public void accept(Void result, Throwable error) {
+						String m = error == null ? "Cleaning done." : "Error. Failed to clean the litter box.";
+						c.offerMessage(new Message(m, Message.FORCE_CLEANING, Message.NO_SEQUENCE, id));
+					}
+				});
+				break;
+			}
+			String m = "Cleaning done.";
+			try {
+				KuwetexServer.clearLitterBox(true); // true = forced cleaning
+			} catch (InterruptedException e) {
+				ServerLog.log(ServerLog.ERROR, "Forced cleaning was interrupted.", e);
+				m = "Error. Failed to clean the litter box.";
+			} finally {
+				message = new Message(m, Message.FORCE_CLEANING, Message.NO_SEQUENCE, id);
+				client.sendMessage(message);
+			}
+			break;
+		}
+		case Message.GET_STATISTICS: {
+			StringBuilder builder = new StringBuilder();
+			String cat = message.getMessage();
+			KuwetexServer.getDataBank().appendStatistics(cat == null || cat.isEmpty() ? null : cat, builder);
+			message = new Message(builder.toString(), Message.GET_STATISTICS, Message.NO_SEQUENCE, id);
+			client.sendMessage(message);
+			break;
+		}
+		case Message.GET_METRICS: {
+			StringBuilder builder = new StringBuilder();
+			Metrics.appendTo(builder);
+			message = new Message(builder.toString(), Message.GET_METRICS, Message.NO_SEQUENCE, id);
+			client.sendMessage(message);
+			break;
+		}
+		case Message.SUBSCRIBE: {
+			KuwetexServer.getEvents().subscribe(client, id); // confirmation is sent by the broadcaster
+			break;
+		}
+		default: {
+			ServerLog.log(ServerLog.WARN, "Error, no such case: {}", message.getHEADER());
+			client.logOutUser(); // disconnect user
+			break;
+		}
+		} // end of switch
+	}
+}
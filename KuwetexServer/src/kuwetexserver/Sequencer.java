@@ -0,0 +1,59 @@
+package kuwetexserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Numbers records of an append-only history without locks.
+ * A writer claims the next number, fills its slot and marks it done. The published count is
+ * a high-water mark: every record below it is complete, so readers can use them without a lock.
+ * A writer never waits for other writers. It moves the mark over its own record and over
+ * following records that were finished before, if the records before it are done. Otherwise the
+ * writer of the earlier record moves the mark later.
+ * */
+class Sequencer {
+	private static final int RING_SIZE = 1 << 16; // records that can be in progress at once
+	private static final int RING_MASK = RING_SIZE - 1;
+
+	private final AtomicInteger claimed = new AtomicInteger(0);
+	private final AtomicInteger published = new AtomicInteger(0);
+	// slot of a finished record holds its number + 1
+	private final AtomicIntegerArray done = new AtomicIntegerArray(RING_SIZE);
+
+	/**
+	 * @return Number of the new record.
+	 * @throws IllegalStateException if the history is full.
+	 * */
+	int claim() {
+		int index = claimed.getAndIncrement();
+		if (index < 0)
+			throw new IllegalStateException("History is full.");
+		// the ring is full only if a writer stopped in the middle of its record
+		while (index - published.get() >= RING_SIZE)
+			Thread.yield();
+		return index;
+	}
+
+	/**
+	 * Marks the record as complete and moves the published count as far as possible.
+	 * @param index - number of the record.
+	 * */
+	void publish(int index) {
+		done.set(index & RING_MASK, index + 1);
+		int mark = published.get();
+		while (done.get(mark & RING_MASK) == mark + 1) {
+			if (published.compareAndSet(mark, mark + 1)) {
+				mark++;
+			} else {
+				mark = published.get();
+			}
+		}
+	}
+
+	/**
+	 * @return Number of the published records. Records 0..published-1 are complete.
+	 * */
+	int published() {
+		return published.get();
+	}
+}
@@ -0,0 +1,343 @@
+package kuwetexserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log of the server events. Used instead of System.out, which makes every thread wait for the console.
+ * The thread that logs an event only puts the level, the time, the text and its arguments into a slot
+ * of a ring buffer, without locks. One flusher thread formats everything that is waiting and writes
+ * it at once to the log file (or the console). The file is rolled over when it gets too big.
+ * If the flusher can not keep up and the ring is full, new events are dropped and counted.
+ * An event below the level of the log costs one comparison: the text is given as a format
+ * with {} in place of the arguments and numbers are passed as long, so nothing is created.
+ * */
+public final class ServerLog {
+	// levels
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	public static final int WARN = 2;
+	public static final int ERROR = 3;
+	public static final int OFF = 4;
+	private static final String[] LEVEL_NAMES = {"DEBUG", "INFO ", "WARN ", "ERROR"};
+
+	private static final int RING_SIZE = 1 << 14;
+	private static final int RING_MASK = RING_SIZE - 1;
+	private static final int MAX_BATCH = 1_024;
+	private static final long FLUSH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10); // when nothing is waiting
+	private static final long MAX_FILE_SIZE = 16L * 1024 * 1024; // chars
+	private static final int MAX_OLD_FILES = 5; // kuwetex.log.1 ... kuwetex.log.5
+
+	private static final int FIRST_NUMBER = 1, SECOND_NUMBER = 2;
+
+	private static final Event[] ring = new Event[RING_SIZE];
+	private static final AtomicLong claimed = new AtomicLong(0);
+	private static volatile long consumed = 0; // moved only by the flusher
+	private static final AtomicLong dropped = new AtomicLong(0); // since the last flush
+	private static final AtomicLong droppedTotal = new AtomicLong(0);
+
+	private static volatile int level = INFO;
+	private static volatile boolean isWorking = true;
+	private static File file = null; // null = console
+	private static Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+	private static long written = 0;
+	private static final Thread flusher;
+
+	/**
+	 * Slot of the ring. Written by the thread that claimed it, published by the sequence.
+	 * */
+	private static final class Event {
+		volatile long sequence = -1; // number of the event in the slot, the slot is ready when it is set
+		int level;
+		long time;
+		String thread;
+		String format;
+		Object first, second;
+		long firstNumber, secondNumber;
+		int numbers; // arguments that are numbers: FIRST_NUMBER, SECOND_NUMBER or both
+		Throwable error;
+	}
+
+	static {
+		for (int i=0; i<RING_SIZE; i++)
+			ring[i] = new Event();
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "kuwetex-log");
+		flusher.setDaemon(true);
+		flusher.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		}));
+	}
+
+	private ServerLog() {
+	}
+
+	/**
+	 * Sets the level and the destination of the log.
+	 * @param newLevel - events below the level are not logged. One of DEBUG, INFO, WARN, ERROR, OFF.
+	 * @param logFile - log file or null for the console. Older files are renamed to logFile.1, logFile.2, ...
+	 * @throws IOException if the file can not be opened.
+	 * */
+	public static void configure(int newLevel, File logFile) throws IOException {
+		Writer writer = logFile == null ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+				: new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8);
+		synchronized (ServerLog.class) { // flusher writes under this lock
+			out.flush();
+			if (file != null)
+				out.close();
+			out = writer;
+			file = logFile;
+			written = logFile == null ? 0 : logFile.length();
+		}
+		level = newLevel;
+	}
+
+	/**
+	 * @param eventLevel - one of DEBUG, INFO, WARN, ERROR.
+	 * @return True if events of the level are logged. Useful if the arguments are expensive to compute.
+	 * */
+	public static boolean isEnabled(int eventLevel) {
+		return eventLevel >= level;
+	}
+
+	/**
+	 * @param eventLevel - one of DEBUG, INFO, WARN, ERROR.
+	 * @param message - text of the event.
+	 * */
+	public static void log(int eventLevel, String message) {
+		if (eventLevel < level) return;
+		record(eventLevel, message, null, null, 0, 0, 0, null);
+	}
+
+	/**
+	 * @param format - text of the event, {} is replaced with the argument.
+	 * */
+	public static void log(int eventLevel, String format, Object argument) {
+		if (eventLevel < level) return;
+		record(eventLevel, format, argument, null, 0, 0, 0, null);
+	}
+
+	public static void log(int eventLevel, String format, long argument) {
+		if (eventLevel < level) return;
+		record(eventLevel, format, null, null, argument, 0, FIRST_NUMBER, null);
+	}
+
+	/**
+	 * @param format - text of the event, every {} is replaced with the next argument.
+	 * */
+	public static void log(int eventLevel, String format, Object first, Object second) {
+		if (eventLevel < level) return;
+		record(eventLevel, format, first, second, 0, 0, 0, null);
+	}
+
+	public static void log(int eventLevel, String format, Object first, long second) {
+		if (eventLevel < level) return;
+		record(eventLevel, format, first, null, 0, second, SECOND_NUMBER, null);
+	}
+
+	public static void log(int eventLevel, String format, long first, Object second) {
+		if (eventLevel < level) return;
+		record(eventLevel, format, null, second, first, 0, FIRST_NUMBER, null);
+	}
+
+	public static void log(int eventLevel, String format, long first, long second) {
+		if (eventLevel < level) return;
+		record(eventLevel, format, null, null, first, second, FIRST_NUMBER | SECOND_NUMBER, null);
+	}
+
+	/**
+	 * @param message - text of the event.
+	 * @param error - exception, its stack trace is logged after the text.
+	 * */
+	public static void log(int eventLevel, String message, Throwable error) {
+		if (eventLevel < level) return;
+		record(eventLevel, message, null, null, 0, 0, 0, error);
+	}
+
+	private static void record(int eventLevel, String format, Object first, Object second,
+			long firstNumber, long secondNumber, int numbers, Throwable error) {
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (sequence - consumed >= RING_SIZE) { // flusher is behind
+				dropped.incrementAndGet();
+				return;
+			}
+		} while ( ! claimed.compareAndSet(sequence, sequence + 1));
+		Event event = ring[(int) sequence & RING_MASK];
+		event.level = eventLevel;
+		event.time = System.currentTimeMillis();
+		event.thread = Thread.currentThread().getName();
+		event.format = format;
+		event.first = first;
+		event.second = second;
+		event.firstNumber = firstNumber;
+		event.secondNumber = secondNumber;
+		event.numbers = numbers;
+		event.error = error;
+		event.sequence = sequence;
+	}
+
+	/**
+	 * Loop of the flusher thread.
+	 * */
+	private static void flushLoop() {
+		StringBuilder text = new StringBuilder(64 * 1024);
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		Date date = new Date();
+		while (isWorking)
+		{
+			if ( ! flush(text, dateFormat, date))
+				LockSupport.parkNanos(FLUSH_INTERVAL);
+		}
+		while (flush(text, dateFormat, date)); // events logged before close
+	}
+
+	/**
+	 * Formats the waiting events and writes them at once.
+	 * @return True if there were any events.
+	 * */
+	private static boolean flush(StringBuilder text, SimpleDateFormat dateFormat, Date date) {
+		long next = consumed;
+		int count = 0;
+		while (count < MAX_BATCH) {
+			Event event = ring[(int) next & RING_MASK];
+			if (event.sequence != next) break; // not published yet
+			date.setTime(event.time);
+			text.append(dateFormat.format(date)).append(' ').append(LEVEL_NAMES[event.level])
+					.append(" [").append(event.thread).append("] ");
+			appendMessage(event, text);
+			text.append(System.lineSeparator());
+			if (event.error != null) {
+				StringWriter trace = new StringWriter();
+				event.error.printStackTrace(new PrintWriter(trace));
+				text.append(trace);
+			}
+			event.first = event.second = null; // do not keep the objects alive
+			event.error = null;
+			next++;
+			count++;
+		}
+		consumed = next; // the slots can be used again
+		long lost = dropped.getAndSet(0);
+		droppedTotal.addAndGet(lost);
+		if (lost > 0)
+			text.append(lost).append(" log events were dropped, the log could not keep up.").append(System.lineSeparator());
+		if (text.length() == 0)
+			return false;
+		synchronized (ServerLog.class) {
+			try {
+				out.append(text);
+				out.flush();
+				written += text.length();
+				if (file != null && written > MAX_FILE_SIZE)
+					roll();
+			} catch (IOException e) {
+				System.err.println("Log can not be written: " + e);
+			}
+		}
+		text.setLength(0);
+		return true;
+	}
+
+	private static void appendMessage(Event event, StringBuilder text) {
+		String format = event.format;
+		int argument = 0, from = 0, at;
+		while (argument < 2 && (at = format.indexOf("{}", from)) >= 0) {
+			text.append(format, from, at);
+			if (argument == 0)
+				appendArgument(text, event.first, event.firstNumber, (event.numbers & FIRST_NUMBER) != 0);
+			else
+				appendArgument(text, event.second, event.secondNumber, (event.numbers & SECOND_NUMBER) != 0);
+			argument++;
+			from = at + 2;
+		}
+		text.append(format, from, format.length());
+	}
+
+	private static void appendArgument(StringBuilder text, Object value, long number, boolean isNumber) {
+		if (isNumber)
+			text.append(number);
+		else
+			text.append(value);
+	}
+
+	/**
+	 * Renames the full log file to .1 (and the older ones to .2, .3, ...) and starts a new one.
+	 * */
+	private static void roll() throws IOException {
+		out.close();
+		new File(file.getPath() + "." + MAX_OLD_FILES).delete();
+		for (int i=MAX_OLD_FILES - 1; i>=1; i--)
+			new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+		file.renameTo(new File(file.getPath() + ".1"));
+		out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+		written = 0;
+	}
+
+	/**
+	 * @return Number of the events waiting for the flusher.
+	 * */
+	static long getQueueDepth() {
+		return Math.max(0, claimed.get() - consumed);
+	}
+
+	/**
+	 * @return Number of the events dropped since the start because the ring was full.
+	 * */
+	static long getDroppedCount() {
+		return droppedTotal.get();
+	}
+
+	/**
+	 * Writes the waiting events and stops the flusher. Called when the server is shut down.
+	 * */
+	static void close() {
+		isWorking = false;
+		LockSupport.unpark(flusher);
+		try {
+			flusher.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (ServerLog.class) {
+			try {
+				out.flush();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * @param name - name of the level, for example "debug".
+	 * @return The level.
+	 * @throws IllegalArgumentException if there is no such level.
+	 * */
+	static int levelOf(String name) {
+		for (int l=DEBUG; l<OFF; l++)
+			if (LEVEL_NAMES[l].trim().equalsIgnoreCase(name))
+				return l;
+		if (name.equalsIgnoreCase("off"))
+			return OFF;
+		throw new IllegalArgumentException("Unknown log level: " + name);
+	}
+}
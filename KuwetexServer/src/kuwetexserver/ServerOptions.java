@@ -0,0 +1,217 @@
+package kuwetexserver;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import other.Cat;
+
+/**
+ * Launch options of the server.
+ * Options are given in the command line as --name=value, for example: --mode=nio --event-loops=2
+ * */
+public class ServerOptions {
+	// connection engines
+	public static final String MODE_BLOCKING = "blocking";
+	public static final String MODE_NIO = "nio";
+	// threads that run clients, cats and the cleaning system
+	public static final String THREADS_PLATFORM = "platform";
+	public static final String THREADS_VIRTUAL = "virtual";
+	// storage of the visits
+	public static final String STORAGE_HEAP = "heap";
+	public static final String STORAGE_MAPPED = "mapped";
+
+	// names of all the options, other ones are rejected
+	private static final Set<String> NAMES = new HashSet<>(Arrays.asList("mode", "event-loops", "workers",
+			"heavy-requests", "threads", "cats", "litter-boxes", "data-dir", "storage", "log-level", "log-file",
+			"seed", "load-cats", "load-seed", "load-speed", "load-minutes", "load-threads"));
+
+	private final Map<String, String> values = new HashMap<>();
+
+	/**
+	 * Constructor.
+	 * @param args - command line arguments.
+	 * @throws IllegalArgumentException if the argument is not in --name=value form or the name is unknown.
+	 * */
+	public ServerOptions(String[] args) {
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if ( ! arg.startsWith("--") || eq < 0)
+				throw new IllegalArgumentException("Unknown argument: " + arg + ". Use --name=value.");
+			String name = arg.substring(2, eq);
+			if ( ! NAMES.contains(name))
+				throw new IllegalArgumentException("Unknown option: --" + name);
+			values.put(name, arg.substring(eq + 1));
+		}
+	}
+
+	/**
+	 * @return Connection engine: "blocking" (thread per client, default) or "nio" (selector based).
+	 * */
+	public String getMode() {
+		String mode = getString("mode", MODE_BLOCKING);
+		if ( ! mode.equals(MODE_BLOCKING) && ! mode.equals(MODE_NIO))
+			throw new IllegalArgumentException("Unknown mode: " + mode);
+		return mode;
+	}
+
+	/**
+	 * @return Number of the selector threads in nio mode.
+	 * */
+	public int getEventLoops() {
+		return getInt("event-loops", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	/**
+	 * @return Number of the threads that handle requests in nio mode.
+	 * */
+	public int getWorkerThreads() {
+		return getInt("workers", Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return Number of the reports, recommendations and queries that may be rendered at once.
+	 * Other ones wait a moment and then get a BUSY response.
+	 * */
+	public int getHeavyRequests() {
+		return getInt("heavy-requests", Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return Kind of threads for client workers, cats and the cleaning system:
+	 * "platform" (default) or "virtual" (needs Java 21).
+	 * */
+	public String getThreads() {
+		String threads = getString("threads", THREADS_PLATFORM);
+		if ( ! threads.equals(THREADS_PLATFORM) && ! threads.equals(THREADS_VIRTUAL))
+			throw new IllegalArgumentException("Unknown threads: " + threads);
+		return threads;
+	}
+	
+	/**
+	 * @return Number of the simulated cats. Names and eye colors are reused when there are more cats than names.
+	 * */
+	public int getCats() {
+		return getInt("cats", Cat.NAMES.length);
+	}
+	
+	/**
+	 * @return Number of the litter boxes. Default is one box, as in the first version.
+	 * */
+	public int getLitterBoxes() {
+		return getInt("litter-boxes", 1);
+	}
+	
+	/**
+	 * @return Directory of the data log or null if the history should be kept only in memory (--data-dir=none).
+	 * A load test keeps its simulated visits only in memory, unless --data-dir is given, so they never
+	 * get into the history of the real cats in the default directory.
+	 * */
+	public File getDataDirectory() {
+		String dir = getString("data-dir", getLoadCats() > 0 ? "none" : "data");
+		return dir.equals("none") ? null : new File(dir);
+	}
+	
+	/**
+	 * @return Storage of the visits: "heap" (objects, default) or "mapped" (memory-mapped columns).
+	 * */
+	public String getStorage() {
+		String storage = getString("storage", STORAGE_HEAP);
+		if ( ! storage.equals(STORAGE_HEAP) && ! storage.equals(STORAGE_MAPPED))
+			throw new IllegalArgumentException("Unknown storage: " + storage);
+		return storage;
+	}
+	
+	/**
+	 * @return Level of the server log: "debug", "info" (default), "warn", "error" or "off" as one of ServerLog levels.
+	 * */
+	public int getLogLevel() {
+		return ServerLog.levelOf(getString("log-level", "info"));
+	}
+	
+	/**
+	 * @return Log file of the server (--log-file) or null if the log should be printed to the console (default).
+	 * */
+	public File getLogFile() {
+		String file = getString("log-file", "console");
+		return file.equals("console") ? null : new File(file);
+	}
+	
+	/**
+	 * @return Seed of the random numbers of the server (--seed) or null if they should be different in every run.
+	 * With a seed the cats get the same random numbers in every run.
+	 * */
+	public Long getSeed() {
+		String seed = values.get("seed");
+		if (seed == null) return null;
+		try {
+			return Long.parseLong(seed);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("--seed must be a number: " + seed);
+		}
+	}
+	
+	/**
+	 * @return Number of the cats simulated by the load generator (--load-cats) or 0 if the server
+	 * runs the usual cats. The simulated cats replace them.
+	 * */
+	public int getLoadCats() {
+		return values.containsKey("load-cats") ? getInt("load-cats", 0) : 0;
+	}
+	
+	/**
+	 * @return Seed of the load generator (--load-seed, or --seed if it is not given, or 1).
+	 * Runs with the same seed give the same visits.
+	 * */
+	public long getLoadSeed() {
+		Long serverSeed = getSeed();
+		String seed = getString("load-seed", serverSeed == null ? "1" : serverSeed.toString());
+		try {
+			return Long.parseLong(seed);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("--load-seed must be a number: " + seed);
+		}
+	}
+	
+	/**
+	 * @return How many times faster than real time the simulation clock goes (--load-speed=60)
+	 * or 0 if it goes as fast as the server can (--load-speed=max, default).
+	 * */
+	public int getLoadSpeed() {
+		return getString("load-speed", "max").equals("max") ? 0 : getInt("load-speed", 1);
+	}
+	
+	/**
+	 * @return Time on the simulation clock that the load generator simulates (minutes).
+	 * */
+	public int getLoadMinutes() {
+		return getInt("load-minutes", 60);
+	}
+	
+	/**
+	 * @return Number of the threads of the load generator. Every thread drives its own part of the cats.
+	 * */
+	public int getLoadThreads() {
+		return getInt("load-threads", Runtime.getRuntime().availableProcessors());
+	}
+	
+	private String getString(String name, String defaultValue) {
+		String value = values.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	private int getInt(String name, int defaultValue) {
+		String value = values.get(name);
+		if (value == null) return defaultValue;
+		try {
+			int n = Integer.parseInt(value);
+			if (n < 1) throw new NumberFormatException();
+			return n;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("--" + name + " must be a positive number: " + value);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package kuwetexserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+import network.EncodedText;
+import network.Message;
+
+/**
+ * Sessions of the clients by their IDs. Clients register and unregister themselves from their own
+ * threads, so the registry is a ConcurrentHashMap: adding a new ID is a CAS on an empty bin, nobody
+ * waits for a lock held by a client that is being logged in or out.
+ * Iteration is weakly consistent: it never fails when sessions come and go, it just may or may not
+ * see the ones that changed meanwhile.
+ * */
+class SessionRegistry {
+	private final ConcurrentHashMap<Integer, ClientSession> sessions = new ConcurrentHashMap<>();
+
+	/**
+	 * @param session - the session, its ID is the key.
+	 * @return True if it was added, false if it is already there.
+	 * */
+	boolean register(ClientSession session) {
+		return sessions.putIfAbsent(session.getId(), session) == null;
+	}
+
+	/**
+	 * @param session - the session.
+	 * @return True if it was removed, false if it was not there (it is removed only once).
+	 * */
+	boolean unregister(ClientSession session) {
+		return sessions.remove(session.getId(), session);
+	}
+
+	/**
+	 * @return Session of the client or null if it is not registered.
+	 * */
+	ClientSession get(int id) {
+		return sessions.get(id);
+	}
+
+	int size() {
+		return sessions.size();
+	}
+
+	boolean isEmpty() {
+		return sessions.isEmpty();
+	}
+
+	/**
+	 * Sends the message to every registered session. Sending only queues the message in the session,
+	 * so the cost for the caller is the same for every client and a slow one does not delay the others.
+	 * A text is encoded once here, as a report is, and its bytes are shared by all the sessions.
+	 * Sessions that are closed already are removed.
+	 * @param message - the message, the same instance is given to all sessions.
+	 * */
+	void broadcast(Message message) {
+		String text = message.getEncodedText() == null ? message.getMessage() : null;
+		if (text != null)
+			message = Message.encoded(new EncodedText(new byte[][] {text.getBytes(StandardCharsets.UTF_8)}),
+					message.getHEADER(), message.getSequence(), message.getCorrelationId());
+		for (ClientSession session : sessions.values()) {
+			if (session.getSocket().isClosed()) {
+				unregister(session);
+				continue;
+			}
+			session.sendMessage(message);
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package kuwetexserver;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Rolling statistics of every cat over the last hour, day and week: number of visits,
+ * time spent in the litter box (average and percentiles), weight and its trend and illnesses.
+ * Every window is a ring of time slots. A record is added to the slot of its time and a slot
+ * older than the window is cleared when it is used again, so the cost of adding a record and
+ * of reading the statistics does not depend on the size of the history.
+ * Windows of one cat are updated under the write lock of the cat, cats do not wait for each other.
+ * A reader never takes the lock: it sums the slots optimistically and sums them again if a record
+ * was added meanwhile, then formats the totals outside of it, so readers never stop a cat.
+ * */
+class Statistics {
+	private static final long MINUTE = 60_000, HOUR = 60 * MINUTE, DAY = 24 * HOUR;
+
+	private static final String[] WINDOW_NAMES = {"last hour", "last day", "last week"};
+	private static final long[] WINDOW_LENGTHS = {HOUR, DAY, 7 * DAY};
+	private static final int[] WINDOW_SLOTS = {12, 24, 28}; // 5 minutes, 1 hour and 6 hours each
+
+	private static final double[] PERCENTILES = {50, 90, 99};
+
+	private final ConcurrentMap<String, CatStatistics> cats = new ConcurrentHashMap<>();
+
+	// histogram of the time spent in the box (ms), longer visits are counted as an hour
+	private static final int BUCKETS = HistogramBuckets.count(HOUR);
+
+	/**
+	 * Totals of one time slot.
+	 * */
+	private static class Slot {
+		long number = Long.MIN_VALUE; // time / length of the slot, MIN_VALUE = never used
+		int visits, illnesses;
+		long timeSpent, grams;
+		int[] histogram = null; // created by the first visit, many cats have only a few busy slots
+
+		void reset(long newNumber) {
+			number = newNumber;
+			visits = illnesses = 0;
+			timeSpent = grams = 0;
+			if (histogram != null)
+				Arrays.fill(histogram, 0);
+		}
+	}
+
+	/**
+	 * One window of one cat.
+	 * */
+	private static class Window {
+		final long SLOT_LENGTH;
+		final Slot[] SLOTS;
+
+		Window(long length, int slots) {
+			SLOT_LENGTH = length / slots;
+			SLOTS = new Slot[slots];
+			for (int i=0; i<slots; i++)
+				SLOTS[i] = new Slot();
+		}
+
+		/**
+		 * @return Slot of the time or null if the time is older than the window.
+		 * */
+		Slot slot(long time) {
+			long number = Math.floorDiv(time, SLOT_LENGTH);
+			Slot slot = SLOTS[(int) Math.floorMod(number, (long) SLOTS.length)];
+			if (slot.number > number)
+				return null;
+			if (slot.number < number)
+				slot.reset(number);
+			return slot;
+		}
+
+		/**
+		 * Sums the slots that are not older than the window.
+		 * Called without the lock, the totals are used only if no record was added meanwhile.
+		 * */
+		Totals collect(long now) {
+			Totals totals = new Totals(SLOTS.length * SLOT_LENGTH);
+			long newest = Math.floorDiv(now, SLOT_LENGTH), oldest = newest - SLOTS.length + 1;
+			for (Slot slot : SLOTS) {
+				long number = slot.number;
+				if (number < oldest || number > newest)
+					continue;
+				int visits = slot.visits;
+				long grams = slot.grams;
+				totals.visits += visits;
+				totals.illnesses += slot.illnesses;
+				totals.timeSpent += slot.timeSpent;
+				totals.grams += grams;
+				int[] histogram = slot.histogram;
+				if (histogram != null)
+					for (int b=0; b<BUCKETS; b++)
+						totals.histogram[b] += histogram[b];
+				if (visits > 0) {
+					// weight trend, least squares over the slots: x = slot (hours), y = average weight (g)
+					double x = (number - oldest) * (double) SLOT_LENGTH / HOUR, y = (double) grams / visits;
+					totals.n++; totals.sx += x; totals.sy += y; totals.sxy += x * y; totals.sxx += x * x;
+				}
+			}
+			return totals;
+		}
+	}
+
+	/**
+	 * Sums of the slots of one window.
+	 * */
+	private static class Totals {
+		final long LENGTH; // of the window
+		int visits, illnesses;
+		long timeSpent, grams;
+		final int[] histogram = new int[BUCKETS];
+		double n, sx, sy, sxy, sxx;
+
+		Totals(long length) {
+			LENGTH = length;
+		}
+
+		/**
+		 * Appends the statistics of the window.
+		 * */
+		void appendTo(StringBuilder builder) {
+			long unit = LENGTH > HOUR ? DAY : HOUR;
+			builder.append(visits).append(" visits (").append(format(visits * (double) unit / LENGTH))
+					.append(unit == DAY ? " per day)" : " per hour)");
+			if (visits > 0) {
+				builder.append(", time in the box: average ").append(timeSpent / visits).append("ms");
+				for (double p : PERCENTILES)
+					builder.append(", p").append((int) p).append(' ').append(percentile(histogram, visits, p)).append("ms");
+				builder.append(", weight: average ").append(format(grams / (double) visits / 1000)).append(" kg");
+				double d = n * sxx - sx * sx;
+				if (n > 1 && d != 0) {
+					double slope = (n * sxy - sx * sy) / d; // g per hour
+					builder.append(" (").append(slope >= 0 ? "+" : "").append(format(slope * 24)).append(" g per day)");
+				}
+			}
+			builder.append(", illnesses: ").append(illnesses);
+			if (visits > 0)
+				builder.append(" (").append(format(100.0 * illnesses / visits)).append("% of visits)");
+		}
+
+		private static long percentile(int[] histogram, int count, double p) {
+			long rank = (long) Math.ceil(p / 100 * count), seen = 0;
+			for (int b=0; b<histogram.length; b++) {
+				seen += histogram[b];
+				if (seen >= rank && histogram[b] > 0)
+					return HistogramBuckets.valueOf(b);
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * All the windows of one cat.
+	 * */
+	private static class CatStatistics {
+		final Window[] WINDOWS = new Window[WINDOW_LENGTHS.length];
+		final StampedLock LOCK = new StampedLock();
+
+		CatStatistics() {
+			for (int w=0; w<WINDOWS.length; w++)
+				WINDOWS[w] = new Window(WINDOW_LENGTHS[w], WINDOW_SLOTS[w]);
+		}
+
+		void visit(long timestamp, long timeSpent, int grams) {
+			int bucket = HistogramBuckets.bucketOf(Math.min(timeSpent, HOUR));
+			long stamp = LOCK.writeLock();
+			try {
+				for (Window window : WINDOWS) {
+					Slot slot = window.slot(timestamp);
+					if (slot == null) continue;
+					slot.visits++;
+					slot.timeSpent += timeSpent;
+					slot.grams += grams;
+					if (slot.histogram == null)
+						slot.histogram = new int[BUCKETS];
+					slot.histogram[bucket]++;
+				}
+			} finally {
+				LOCK.unlockWrite(stamp);
+			}
+		}
+
+		void illness(long timestamp) {
+			long stamp = LOCK.writeLock();
+			try {
+				for (Window window : WINDOWS) {
+					Slot slot = window.slot(timestamp);
+					if (slot != null)
+						slot.illnesses++;
+				}
+			} finally {
+				LOCK.unlockWrite(stamp);
+			}
+		}
+
+		/**
+		 * @return Totals of all the windows, read without stopping the writers.
+		 * */
+		Totals[] collect(long now) {
+			while (true) {
+				long stamp = LOCK.tryOptimisticRead();
+				if (stamp != 0) {
+					Totals[] totals = new Totals[WINDOWS.length];
+					for (int w=0; w<WINDOWS.length; w++)
+						totals[w] = WINDOWS[w].collect(now);
+					if (LOCK.validate(stamp))
+						return totals;
+				}
+				Thread.yield(); // a record is being added, it takes a moment
+			}
+		}
+
+		void appendTo(long now, StringBuilder builder) {
+			Totals[] totals = collect(now);
+			for (int w=0; w<totals.length; w++) {
+				builder.append("  ").append(WINDOW_NAMES[w]).append(": ");
+				totals[w].appendTo(builder);
+				builder.append("\n");
+			}
+		}
+	}
+
+	private CatStatistics of(String cat) {
+		CatStatistics statistics = cats.get(cat);
+		if (statistics == null) {
+			cats.putIfAbsent(cat, new CatStatistics());
+			statistics = cats.get(cat);
+		}
+		return statistics;
+	}
+
+	/**
+	 * Adds the visit to the windows of the cat.
+	 * @param cat - name of the cat.
+	 * @param timestamp - date of the visit (epoch ms).
+	 * @param timeSpent - time spent in the litter box (ms).
+	 * @param grams - weight of the cat (g).
+	 * */
+	void visit(String cat, long timestamp, long timeSpent, int grams) {
+		of(cat).visit(timestamp, timeSpent, grams);
+	}
+
+	/**
+	 * Adds the illness to the windows of the cat.
+	 * @param cat - name of the cat.
+	 * @param timestamp - date of the analysis (epoch ms).
+	 * */
+	void illness(String cat, long timestamp) {
+		of(cat).illness(timestamp);
+	}
+
+	/**
+	 * Appends the statistics of the cat or of all the cats.
+	 * @param cat - name of the cat or null for all cats.
+	 * @param now - end of the windows (epoch ms).
+	 * @param builder - String representation of the statistics is appended here.
+	 * */
+	void appendTo(String cat, long now, StringBuilder builder) {
+		Map<String, CatStatistics> selected = new TreeMap<>();
+		if (cat == null) {
+			selected.putAll(cats);
+		} else if (cats.containsKey(cat)) {
+			selected.put(cat, cats.get(cat));
+		}
+		for (Map.Entry<String, CatStatistics> entry : selected.entrySet()) {
+			builder.append(entry.getKey()).append("\n");
+			entry.getValue().appendTo(now, builder);
+		}
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.1f", value);
+	}
+}
@@ -0,0 +1,41 @@
+package kuwetexserver;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives every distinct string a small number, so columns can store numbers instead of text.
+ * Lookups in both directions do not lock.
+ * */
+class StringDictionary {
+	private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+	private volatile String[] values = new String[16];
+	private int size = 0; // guarded by this
+	
+	/**
+	 * @return Number of the string. New number is given to unknown strings.
+	 * */
+	int idOf(String value) {
+		Integer id = ids.get(value);
+		if (id != null) return id;
+		synchronized (this) {
+			id = ids.get(value);
+			if (id != null) return id;
+			String[] v = values;
+			if (size == v.length)
+				v = Arrays.copyOf(v, size * 2);
+			v[size] = value;
+			values = v; // publish the string before its number
+			ids.put(value, size);
+			return size++;
+		}
+	}
+	
+	/**
+	 * @return String with given number.
+	 * */
+	String valueOf(int id) {
+		return values[id];
+	}
+}
@@ -0,0 +1,39 @@
+package kuwetexserver;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executor that runs long living tasks of the server:
+ * client workers, cats and the cleaning system.
+ * */
+class TaskExecutors {
+	
+	private TaskExecutors() {
+	}
+	
+	/**
+	 * @param threads - ServerOptions.THREADS_PLATFORM or ServerOptions.THREADS_VIRTUAL.
+	 * @return Executor that starts a new thread of given kind for every task.
+	 * @throws IllegalStateException if virtual threads are not supported by the running Java.
+	 * */
+	static ExecutorService newExecutor(String threads) {
+		if (threads.equals(ServerOptions.THREADS_VIRTUAL))
+			return newVirtualThreadExecutor();
+		return Executors.newCachedThreadPool();
+	}
+	
+	/**
+	 * Virtual threads come with Java 21, so the factory method is looked up at runtime
+	 * and the server still runs on older Java in platform mode.
+	 * Blocked virtual threads (socket reads, Thread.sleep, waiting for ReentrantLock)
+	 * release their carrier thread, so tasks may block as much as they want.
+	 * */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Virtual threads need Java 21 or newer.", e);
+		}
+	}
+}
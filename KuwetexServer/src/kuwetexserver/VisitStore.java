@@ -0,0 +1,30 @@
+package kuwetexserver;
+
+import sensors.HealthStatus;
+
+/**
+ * Storage of the litter box visits that are kept by the Data Bank.
+ * Visits are numbered from 0 in the order they were added. The numbers are given by
+ * the Sequencer of the Data Bank, which also makes the stored visits visible to readers.
+ * Different slots can be set by many threads at the same time.
+ * */
+interface VisitStore {
+	/**
+	 * Stores the visit in its slot.
+	 * @param index - number of the visit.
+	 * @param name - name of the cat.
+	 * @param eyes - eyes color of the cat.
+	 * @param grams - current cat weight (g).
+	 * @param time - time spent in the litter box (ms).
+	 * @param health - health status of the cat.
+	 * @param timestamp - date of the visit (epoch ms).
+	 * */
+	void set(int index, String name, String eyes, int grams, long time, HealthStatus health, long timestamp);
+	
+	/**
+	 * Appends String representation of the visit, as it is shown in the report.
+	 * @param index - number of the published visit.
+	 * @param builder - the text is appended here.
+	 * */
+	void appendTo(int index, StringBuilder builder);
+}
@@ -1,6 +1,9 @@
 package other;
 
+import java.util.SplittableRandom;
+
 import kuwetexserver.KuwetexServer;
+import kuwetexserver.ServerLog;
 
 /**
  * Cat imitation class.
@@ -18,6 +21,7 @@ public class Cat implements Runnable {
 	private final String NAME;
 	private final String EYE_COLOR;
 	private final int GENDER;
+	private final SplittableRandom RANDOM; // everything random about the cat comes from it
 	
 	/**
 	 * Constructor.
@@ -25,9 +29,43 @@ public class Cat implements Runnable {
 	 * @param eyes - eyes color of the cat.
 	 * */
 	public Cat(int name, int eyes) {
-		NAME = NAMES[name];
-		EYE_COLOR = EYES[eyes];
-		GENDER = KuwetexServer.random.nextInt(2);
+		this(NAMES[name], EYES[eyes], KuwetexServer.getRandom().split());
+	}
+	
+	/**
+	 * Constructor. Cats with the same seed have the same gender, visits and health.
+	 * @param name - name of the cat.
+	 * @param eyes - eyes color of the cat.
+	 * @param seed - seed of the random numbers of the cat.
+	 * */
+	public Cat(String name, String eyes, long seed) {
+		this(name, eyes, new SplittableRandom(seed));
+	}
+	
+	/**
+	 * Constructor.
+	 * @param name - name of the cat.
+	 * @param eyes - eyes color of the cat.
+	 * @param random - generator of the cat, for example split from a RandomSource. Only the cat uses it.
+	 * */
+	public Cat(String name, String eyes, SplittableRandom random) {
+		this(name, eyes, random.nextInt(2), random);
+	}
+	
+	private Cat(String name, String eyes, int gender, SplittableRandom random) {
+		NAME = name;
+		EYE_COLOR = eyes;
+		GENDER = gender;
+		RANDOM = random;
+	}
+	
+	/**
+	 * @param random - generator of the copy.
+	 * @return The same cat with another generator. Sensors that examine the cat at the same time
+	 * get such copies, so they do not share the generator and their numbers do not depend on their order.
+	 * */
+	public Cat withRandom(SplittableRandom random) {
+		return new Cat(NAME, EYE_COLOR, GENDER, random);
 	}
 	
 	@Override
@@ -35,15 +73,33 @@ public class Cat implements Runnable {
 		while (true)
 		{
 			try {
-				KuwetexServer.useLitterBox(this);
-				Thread.sleep(KuwetexServer.random.nextInt(10_000 + KuwetexServer.ROLL));
+				try {
+					KuwetexServer.useLitterBox(this);
+				} catch (RuntimeException e) { // the cat goes on after a failed visit
+					ServerLog.log(ServerLog.ERROR, "Error while using litter box, cat - " + NAME, e);
+				}
+				Thread.sleep(nextBreak());
 			} catch (InterruptedException e) {
-				e.printStackTrace();
-				System.out.println("Error while using litter box, cat - "+NAME);
+				ServerLog.log(ServerLog.ERROR, "Error while using litter box, cat - " + NAME, e);
 			}
 		}
 	}
 	
+	/**
+	 * @return Time (ms) until the next visit in the litter box.
+	 * */
+	public int nextBreak() {
+		return RANDOM.nextInt(10_000 + KuwetexServer.ROLL);
+	}
+	
+	/**
+	 * @return Random numbers of the cat. Sensors use it, so a seeded cat gives the same readings.
+	 * Only the thread of the cat may use it.
+	 * */
+	public SplittableRandom getRandom() {
+		return RANDOM;
+	}
+	
 	/**
 	 * @return Name of the cat.
 	 * */
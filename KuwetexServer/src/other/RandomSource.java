@@ -0,0 +1,50 @@
+package other;
+
+import java.util.SplittableRandom;
+
+/**
+ * Source of random numbers for the cats, the sensors and the server.
+ * One java.util.Random shared by all the threads makes them fight over its seed, so every
+ * thread gets its own generator here, split from the root one. Cats get their own generators
+ * too (split()), so a cat draws its numbers without touching any other thread.
+ * With a seed, the generators are split in a fixed order and the numbers are the same in every
+ * run, as long as the cats and the threads are created in the same order.
+ * */
+public class RandomSource {
+	private final SplittableRandom root;
+	private final ThreadLocal<SplittableRandom> perThread = new ThreadLocal<SplittableRandom>() {
+		@Override
+		protected SplittableRandom initialValue() {
+			return split();
+		}
+	};
+
+	/**
+	 * Constructor. The numbers are different in every run.
+	 * */
+	public RandomSource() {
+		root = new SplittableRandom();
+	}
+
+	/**
+	 * Constructor.
+	 * @param seed - seed of the root generator. Sources with the same seed give the same numbers.
+	 * */
+	public RandomSource(long seed) {
+		root = new SplittableRandom(seed);
+	}
+
+	/**
+	 * @return New generator, independent from the others. It may be used by one thread at a time.
+	 * */
+	public synchronized SplittableRandom split() {
+		return root.split();
+	}
+
+	/**
+	 * @return Generator of the current thread. Do not pass it to other threads.
+	 * */
+	public SplittableRandom current() {
+		return perThread.get();
+	}
+}
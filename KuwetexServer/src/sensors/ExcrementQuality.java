@@ -0,0 +1,22 @@
+package sensors;
+
+/**
+ * Quality of the excrement detected by the health sensor. ILLNESS means the cat is ill.
+ * */
+public enum ExcrementQuality {
+	NORMAL_I("normal I"), NORMAL_II("normal II"), OVER_AVERAGE("over average"), ILLNESS("illness");
+	
+	private final String DESCRIPTION;
+	
+	private ExcrementQuality(String description) {
+		DESCRIPTION = description;
+	}
+	
+	/**
+	 * @return Description of the quality as it is shown in the report.
+	 * */
+	@Override
+	public String toString() {
+		return DESCRIPTION;
+	}
+}
@@ -0,0 +1,22 @@
+package sensors;
+
+/**
+ * Quality of the fur detected by the health sensor.
+ * */
+public enum FurQuality {
+	SOFT("soft"), DIRTY("dirty - need cleaning"), NORMAL("normal");
+	
+	private final String DESCRIPTION;
+	
+	private FurQuality(String description) {
+		DESCRIPTION = description;
+	}
+	
+	/**
+	 * @return Description of the quality as it is shown in the report.
+	 * */
+	@Override
+	public String toString() {
+		return DESCRIPTION;
+	}
+}
@@ -1,18 +1,39 @@
 package sensors;
 
-import java.util.Calendar;
-import java.util.Random;
+import java.util.SplittableRandom;
 
-import kuwetexserver.KuwetexServer;
 import other.Cat;
 
-public class HealthSensor implements AbstractSensor{
-	private static final String[] POOP_QUALITY = {"normal I", "normal II", "over average", "illness"},
-								  FUR_QUALITY = {"soft", "dirty - need cleaning", "normal"};
+public class HealthSensor implements Sensor<HealthStatus> {
+	private static final ExcrementQuality[] POOP_QUALITY = ExcrementQuality.values();
+	private static final FurQuality[] FUR_QUALITY = FurQuality.values();
 	
 	private static final int PREGNANT = 0, PREGNANCY_CHANCE = 20;	
 	
-	private static final Random r = KuwetexServer.random;
+	/**
+	 * Detects health condition of the cat. The sensor only reads, an illness is registered
+	 * by a stage of the sensor pipeline.
+	 * @param cat - Reference to the cat that will be examined.
+	 * @return Health status of the cat.
+	 * */
+	public HealthStatus check(Cat cat) {
+		SplittableRandom r = cat.getRandom();
+		ExcrementQuality poopQuality = POOP_QUALITY[r.nextInt(POOP_QUALITY.length)];
+		FurQuality furQuality = FUR_QUALITY[r.nextInt(FUR_QUALITY.length)];
+		
+		// pregnancy test
+		boolean pregnant = (cat.getGender()==Cat.FEMALE) && r.nextInt(PREGNANCY_CHANCE) == PREGNANT;
+		return HealthStatus.of(furQuality, poopQuality, pregnant);
+	}
+	
+	/**
+	 * @param cat - Reference to the cat that will be examined.
+	 * @return Health status of the cat.
+	 * */
+	@Override
+	public HealthStatus read(Cat cat) {
+		return check(cat);
+	}
 	
 	/**
 	 * Detects health condition of the cat.
@@ -21,23 +42,7 @@ public class HealthSensor implements AbstractSensor{
 	 * */
 	@Override
 	public String examine(Cat cat) {
-		int p = r.nextInt(POOP_QUALITY.length);
-		String poopQuality = POOP_QUALITY[p];
-		String furQuality = FUR_QUALITY[r.nextInt(FUR_QUALITY.length)];		
-		String healtStatus = "Fur quality: "+furQuality+", excrement: "+poopQuality;
-		
-		// pregnancy test
-		if ((cat.getGender()==Cat.FEMALE) && r.nextInt(PREGNANCY_CHANCE) == PREGNANT) {
-			healtStatus += "; Cat is PREGNANT!";
-			System.out.println("Urine examination proved that cat is pregnant.");
-		}
-		
-		if (p == (POOP_QUALITY.length-1)) { // the cat is ill
-			KuwetexServer.getDataBank().addNewIllCat(cat.getName(), Calendar.getInstance().getTime().toString());
-			System.out.println("Cat is ill. Added new prescriptions to Data Bank.");
-		}
-		
-		return healtStatus;
+		return check(cat).toString();
 	}
 	
 }
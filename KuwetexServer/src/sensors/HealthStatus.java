@@ -0,0 +1,87 @@
+package sensors;
+
+/**
+ * Result of the health examination: quality of the fur and of the excrement and the pregnancy test.
+ * There are only a few possible results, every one of them is created once and shared,
+ * so examining a cat does not create objects. The text is made only when it is shown.
+ * */
+public final class HealthStatus {
+	private static final FurQuality[] FURS = FurQuality.values();
+	private static final ExcrementQuality[] EXCREMENTS = ExcrementQuality.values();
+	private static final HealthStatus[] ALL = new HealthStatus[FURS.length * EXCREMENTS.length * 2];
+
+	static {
+		for (int code=0; code<ALL.length; code++)
+			ALL[code] = new HealthStatus(code);
+	}
+
+	private final FurQuality FUR;
+	private final ExcrementQuality EXCREMENT;
+	private final boolean PREGNANT;
+	private final int CODE;
+
+	private HealthStatus(int code) {
+		CODE = code;
+		FUR = FURS[code % FURS.length];
+		EXCREMENT = EXCREMENTS[code / FURS.length % EXCREMENTS.length];
+		PREGNANT = code >= FURS.length * EXCREMENTS.length;
+	}
+
+	/**
+	 * @param fur - quality of the fur.
+	 * @param excrement - quality of the excrement.
+	 * @param pregnant - true if the pregnancy test was positive.
+	 * @return The shared instance.
+	 * */
+	public static HealthStatus of(FurQuality fur, ExcrementQuality excrement, boolean pregnant) {
+		return ALL[fur.ordinal() + FURS.length * excrement.ordinal() + (pregnant ? FURS.length * EXCREMENTS.length : 0)];
+	}
+
+	/**
+	 * @param code - code given by getCode().
+	 * @return The shared instance.
+	 * @throws IllegalArgumentException if there is no status with the code.
+	 * */
+	public static HealthStatus fromCode(int code) {
+		if (code < 0 || code >= ALL.length)
+			throw new IllegalArgumentException("No health status with code " + code);
+		return ALL[code];
+	}
+
+	/**
+	 * @return Small number (0..23) that stands for the status. Used to store the status in files.
+	 * */
+	public int getCode() {
+		return CODE;
+	}
+
+	public FurQuality getFur() {
+		return FUR;
+	}
+
+	public ExcrementQuality getExcrement() {
+		return EXCREMENT;
+	}
+
+	public boolean isPregnant() {
+		return PREGNANT;
+	}
+
+	/**
+	 * @return True if the cat is ill.
+	 * */
+	public boolean isIll() {
+		return EXCREMENT == ExcrementQuality.ILLNESS;
+	}
+
+	/**
+	 * @return Health status as it is shown in the report.
+	 * */
+	@Override
+	public String toString() {
+		String text = "Fur quality: " + FUR + ", excrement: " + EXCREMENT;
+		if (PREGNANT)
+			text += "; Cat is PREGNANT!";
+		return text;
+	}
+}
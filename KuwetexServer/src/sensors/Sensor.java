@@ -0,0 +1,16 @@
+package sensors;
+
+import other.Cat;
+
+/**
+ * Sensor that gives its reading as a value, not only as the text shown in the report.
+ * The sensor pipeline keeps the values, for example the weight is stored in grams.
+ * */
+public interface Sensor<T> extends AbstractSensor {
+	/**
+	 * Examines the cat.
+	 * @param cat - Reference to the cat that will be examined.
+	 * @return Value of the cat's attribute that was detected.
+	 */
+	public abstract T read(Cat cat);
+}
@@ -0,0 +1,163 @@
+package sensors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import kuwetexserver.ServerLog;
+import other.Cat;
+
+/**
+ * Examines the cat with all the sensors at once. Sensors that only tell who the cat is (name, eyes)
+ * are read on the thread of the cat, the ones that examine it run in parallel on the executor.
+ * Those are a list: the weight and the health sensors given to the constructor are its first entries
+ * (WEIGHT and HEALTH), any other sensor can be added with addSensor(). The cat does not wait for them:
+ * it gets a future of the reading and goes to the litter box in the meantime.
+ * When the reading is complete, it is given to the stages (for example registration of an illness),
+ * every stage runs on the executor on its own, so a slow stage delays neither the cat nor the others.
+ * Every sensor and stage gets a copy of the cat with its own generator split from the cat's one,
+ * so they do not share it and the readings do not depend on which of them runs first.
+ * */
+public class SensorPipeline {
+	public static final String WEIGHT = "weight", HEALTH = "health"; // names of the usual sensors
+	
+	private final Executor executor;
+	private final AbstractSensor nameSensor, eyeSensor;
+	private final List<NamedSensor> sensors = new CopyOnWriteArrayList<>();
+	private final List<Stage> stages = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Step that is done with every complete reading.
+	 * */
+	public interface Stage {
+		/**
+		 * @param cat - the examined cat, with a generator for the stage.
+		 * @param reading - reading of the sensors.
+		 * */
+		void accept(Cat cat, SensorReading reading);
+	}
+
+	private static class NamedSensor {
+		final String NAME;
+		final AbstractSensor SENSOR;
+
+		NamedSensor(String name, AbstractSensor sensor) {
+			NAME = name; SENSOR = sensor;
+		}
+		
+		/**
+		 * @return Value of a Sensor, text of any other sensor.
+		 * */
+		Object read(Cat cat) {
+			return SENSOR instanceof Sensor ? ((Sensor<?>) SENSOR).read(cat) : SENSOR.examine(cat);
+		}
+	}
+
+	/**
+	 * Constructor. Uses the usual sensors.
+	 * @param executor - runs the sensors and the stages.
+	 * */
+	public SensorPipeline(Executor executor) {
+		this(executor, new NameSensor(), new EyeSensor(), new WeightSensor(), new HealthSensor());
+	}
+
+	/**
+	 * Constructor.
+	 * @param executor - runs the sensors and the stages.
+	 * @param weightSensor - gives the weight of the cat in grams.
+	 * @param healthSensor - gives the health status of the cat.
+	 * */
+	public SensorPipeline(Executor executor, AbstractSensor nameSensor, AbstractSensor eyeSensor,
+			Sensor<Integer> weightSensor, Sensor<HealthStatus> healthSensor) {
+		this.executor = executor;
+		this.nameSensor = nameSensor;
+		this.eyeSensor = eyeSensor;
+		addSensor(WEIGHT, weightSensor);
+		addSensor(HEALTH, healthSensor);
+	}
+
+	/**
+	 * Adds a sensor. Its reading is in SensorReading.get(name).
+	 * @param name - name of the reading.
+	 * @param sensor - the sensor, it runs in parallel with the others.
+	 * @throws IllegalArgumentException if there is a sensor with the name already.
+	 * */
+	public synchronized void addSensor(String name, AbstractSensor sensor) {
+		for (NamedSensor added : sensors)
+			if (added.NAME.equals(name))
+				throw new IllegalArgumentException("There is a sensor named " + name + " already.");
+		sensors.add(new NamedSensor(name, sensor));
+	}
+
+	/**
+	 * Adds a stage that gets every complete reading.
+	 * */
+	public void addStage(Stage stage) {
+		stages.add(stage);
+	}
+
+	/**
+	 * Starts the examination of the cat. Only the name and the eyes are read before it returns.
+	 * Must be called on the thread of the cat, generators of the sensors are split from the cat's one.
+	 * @param cat - the cat.
+	 * @param date - date of the examination (epoch ms).
+	 * @return Future of the reading. It fails if a sensor has failed.
+	 * */
+	public CompletableFuture<SensorReading> examine(Cat cat, final long date) {
+		final String name = nameSensor.examine(cat), eyes = eyeSensor.examine(cat);
+		SplittableRandom random = cat.getRandom();
+		final List<NamedSensor> added = new ArrayList<>(sensors);
+		final List<CompletableFuture<Object>> values = new ArrayList<>(added.size());
+		for (final NamedSensor sensor : added) {
+			final Cat forSensor = cat.withRandom(random.split());
+			values.add(CompletableFuture.supplyAsync(new Supplier<Object>() {
+				@Override
+				public Object get() {
+					return sensor.read(forSensor);
+				}
+			}, executor));
+		}
+		CompletableFuture<?>[] all = values.toArray(new CompletableFuture<?>[values.size()]);
+		CompletableFuture<SensorReading> reading = CompletableFuture.allOf(all).thenApply(new Function<Void, SensorReading>() {
+			@Override
+			public SensorReading apply(Void done) {
+				int grams = 0;
+				HealthStatus health = null;
+				Map<String, String> others = new HashMap<>();
+				for (int i=0; i<added.size(); i++) {
+					String sensor = added.get(i).NAME;
+					Object value = values.get(i).join();
+					if (sensor.equals(WEIGHT))
+						grams = (Integer) value;
+					else if (sensor.equals(HEALTH))
+						health = (HealthStatus) value;
+					else
+						others.put(sensor, String.valueOf(value));
+				}
+				return new SensorReading(name, eyes, grams, health, date, others);
+			}
+		});
+		for (final Stage stage : stages) {
+			final Cat forStage = cat.withRandom(random.split());
+			reading.thenAcceptAsync(new Consumer<SensorReading>() {
+				@Override
+				public void accept(SensorReading result) {
+					try {
+						stage.accept(forStage, result);
+					} catch (RuntimeException e) {
+						ServerLog.log(ServerLog.ERROR, "Sensor stage has failed for cat " + result.getName(), e);
+					}
+				}
+			}, executor);
+		}
+		return reading;
+	}
+}
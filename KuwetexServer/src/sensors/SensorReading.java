@@ -0,0 +1,64 @@
+package sensors;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Everything the sensors have read about the cat at one visit.
+ * */
+public final class SensorReading {
+	private final String NAME;
+	private final String EYES;
+	private final int GRAMS;
+	private final HealthStatus HEALTH;
+	private final long DATE;
+	private final Map<String, String> OTHERS;
+
+	/**
+	 * Constructor.
+	 * @param name - name of the cat.
+	 * @param eyes - eyes color of the cat.
+	 * @param grams - weight of the cat (g).
+	 * @param health - health status of the cat.
+	 * @param date - date of the examination (epoch ms).
+	 * @param others - readings of the sensors added to the pipeline, by their names.
+	 * */
+	SensorReading(String name, String eyes, int grams, HealthStatus health, long date, Map<String, String> others) {
+		NAME = name; EYES = eyes; GRAMS = grams; HEALTH = health; DATE = date;
+		OTHERS = others.isEmpty() ? Collections.<String, String>emptyMap() : Collections.unmodifiableMap(others);
+	}
+
+	public String getName() {
+		return NAME;
+	}
+
+	public String getEyes() {
+		return EYES;
+	}
+
+	/**
+	 * @return Weight of the cat (g).
+	 * */
+	public int getGrams() {
+		return GRAMS;
+	}
+
+	public HealthStatus getHealth() {
+		return HEALTH;
+	}
+
+	/**
+	 * @return Date of the examination (epoch ms).
+	 * */
+	public long getDate() {
+		return DATE;
+	}
+
+	/**
+	 * @param sensor - name the sensor was added to the pipeline with.
+	 * @return Reading of the sensor or null if there is no such sensor.
+	 * */
+	public String get(String sensor) {
+		return OTHERS.get(sensor);
+	}
+}
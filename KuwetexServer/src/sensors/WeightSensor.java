@@ -1,9 +1,27 @@
 package sensors;
 
-import kuwetexserver.KuwetexServer;
 import other.Cat;
 
-public class WeightSensor implements AbstractSensor {
+public class WeightSensor implements Sensor<Integer> {
+	private static final String WEIGHT_UNIT = " kg";
+	
+	/**
+	 * Method checks how heavy is the cat.
+	 * @param cat - Reference to the cat that will be examined.
+	 * @return Current weight of the cat in grams.
+	 * */
+	public int weigh(Cat cat) {
+		return (cat.getRandom().nextInt(5)+2) * 1000;
+	}
+	
+	/**
+	 * @param cat - Reference to the cat that will be examined.
+	 * @return Current weight of the cat in grams.
+	 * */
+	@Override
+	public Integer read(Cat cat) {
+		return weigh(cat);
+	}
 	
 	/**
 	 * Method checks how heavy is the cat.
@@ -12,8 +30,17 @@ public class WeightSensor implements AbstractSensor {
 	 * */
 	@Override
 	public String examine(Cat cat) {
-		Integer weight = (KuwetexServer.random.nextInt(5)+2);
-		return weight.toString() + " kg";
+		return format(weigh(cat));
+	}
+	
+	/**
+	 * @param grams - weight in grams.
+	 * @return Weight as it is shown in the report, for example "4 kg".
+	 * */
+	public static String format(int grams) {
+		if (grams % 1000 == 0)
+			return (grams / 1000) + WEIGHT_UNIT;
+		return (grams / 1000.0) + WEIGHT_UNIT;
 	}
 
 }
@@ -0,0 +1,238 @@
+package kuwetexserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sensors.ExcrementQuality;
+import sensors.FurQuality;
+import sensors.HealthStatus;
+
+public class DataLogTest {
+	private static final HealthStatus HEALTH = HealthStatus.of(FurQuality.NORMAL, ExcrementQuality.NORMAL_I, false);
+
+	private File directory;
+
+	/**
+	 * Records given by the replay, as text.
+	 * */
+	private static class Records implements DataLog.Replay {
+		final List<String> visits = new ArrayList<>(), illnesses = new ArrayList<>();
+
+		@Override
+		public void visit(String name, String eyes, int grams, long time, HealthStatus health, long timestamp) {
+			visits.add(name + " " + eyes + " " + grams + " " + time + " " + health.getCode() + " " + timestamp);
+		}
+
+		@Override
+		public void illness(String catName, long date, String recommendation) {
+			illnesses.add(catName + " " + date + " " + recommendation);
+		}
+	}
+
+	/**
+	 * Segment file that writes only half of the batch with the TORN cat and then fails,
+	 * as a full disk does. Every write of a batch releases a permit of WRITES.
+	 * */
+	private static class TearingChannel extends FileChannel {
+		static final String TORN = "Torn";
+		final FileChannel FILE;
+		final Semaphore WRITES = new Semaphore(0);
+
+		TearingChannel(FileChannel file) {
+			FILE = file;
+		}
+
+		@Override
+		public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+			try {
+				long size = 0;
+				boolean torn = false;
+				for (int i=offset; i<offset+length; i++) {
+					size += sources[i].remaining();
+					torn |= new String(sources[i].array(), StandardCharsets.ISO_8859_1).contains(TORN);
+				}
+				if ( ! torn)
+					return FILE.write(sources, offset, length);
+				for (long left = size / 2; left > 0; ) { // half of the batch, the last record is broken
+					ByteBuffer part = sources[offset].duplicate();
+					part.limit(part.position() + (int) Math.min(left, part.remaining()));
+					left -= FILE.write(part);
+					sources[offset].position(part.position());
+					if ( ! sources[offset].hasRemaining()) offset++;
+				}
+				throw new IOException("No space left on device");
+			} finally {
+				WRITES.release();
+			}
+		}
+
+		@Override public int read(ByteBuffer dst) throws IOException { return FILE.read(dst); }
+		@Override public long read(ByteBuffer[] dsts, int offset, int length) throws IOException { return FILE.read(dsts, offset, length); }
+		@Override public int write(ByteBuffer src) throws IOException { return FILE.write(src); }
+		@Override public long position() throws IOException { return FILE.position(); }
+		@Override public FileChannel position(long newPosition) throws IOException { FILE.position(newPosition); return this; }
+		@Override public long size() throws IOException { return FILE.size(); }
+		@Override public FileChannel truncate(long size) throws IOException { FILE.truncate(size); return this; }
+		@Override public void force(boolean metaData) throws IOException { FILE.force(metaData); }
+		@Override public long transferTo(long position, long count, WritableByteChannel target) throws IOException { return FILE.transferTo(position, count, target); }
+		@Override public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException { return FILE.transferFrom(src, position, count); }
+		@Override public int read(ByteBuffer dst, long position) throws IOException { return FILE.read(dst, position); }
+		@Override public int write(ByteBuffer src, long position) throws IOException { return FILE.write(src, position); }
+		@Override public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException { return FILE.map(mode, position, size); }
+		@Override public FileLock lock(long position, long size, boolean shared) throws IOException { return FILE.lock(position, size, shared); }
+		@Override public FileLock tryLock(long position, long size, boolean shared) throws IOException { return FILE.tryLock(position, size, shared); }
+		@Override protected void implCloseChannel() throws IOException { FILE.close(); }
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("kuwetex-datalog").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		directory.delete();
+	}
+
+	private static String visit(int i) {
+		return "Filemon red " + (4_000 + i) + " " + i + " " + HEALTH.getCode() + " " + (1_000L * i);
+	}
+
+	private static void appendVisit(DataLog log, int i) {
+		log.appendVisit(i, "Filemon", "red", 4_000 + i, i, HEALTH, 1_000L * i);
+	}
+
+	private Records replay() throws IOException {
+		Records records = new Records();
+		new DataLog(directory).replay(records);
+		return records;
+	}
+
+	@Test
+	public void recordsAreReplayedInTheOrderOfTheirNumbers() throws IOException {
+		DataLog log = new DataLog(directory);
+		log.replay(new Records());
+		log.start(0, 0);
+		appendVisit(log, 1); // writers finish out of order
+		appendVisit(log, 0);
+		appendVisit(log, 2);
+		log.appendIllness(0, "Garfield", 5_000, "More water.");
+		log.close();
+
+		Records records = replay();
+		assertEquals(3, records.visits.size());
+		for (int i=0; i<3; i++)
+			assertEquals(visit(i), records.visits.get(i));
+		assertEquals(1, records.illnesses.size());
+		assertEquals("Garfield 5000 More water.", records.illnesses.get(0));
+	}
+
+	@Test
+	public void tornTailIsCutOffAndTheLogGoesOn() throws IOException {
+		DataLog log = new DataLog(directory);
+		log.replay(new Records());
+		log.start(0, 0);
+		for (int i=0; i<10; i++)
+			appendVisit(log, i);
+		log.close();
+		File[] segments = directory.listFiles();
+		assertEquals(1, segments.length);
+		long length = segments[0].length();
+		try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+			file.setLength(length - 3); // crash in the middle of the last record
+		}
+
+		DataLog restarted = new DataLog(directory);
+		Records records = new Records();
+		assertEquals(9, restarted.replay(records));
+		assertEquals(9, records.visits.size());
+		assertEquals(visit(8), records.visits.get(8));
+		assertTrue("Broken end was not cut off.", segments[0].length() < length - 3);
+		restarted.start(9, 0); // the lost record is written again by its new number
+		appendVisit(restarted, 9);
+		restarted.close();
+
+		records = replay();
+		assertEquals(10, records.visits.size());
+		for (int i=0; i<10; i++)
+			assertEquals(visit(i), records.visits.get(i));
+	}
+
+	@Test
+	public void brokenChecksumEndsTheSegment() throws IOException {
+		DataLog log = new DataLog(directory);
+		log.replay(new Records());
+		log.start(0, 0);
+		for (int i=0; i<5; i++)
+			appendVisit(log, i);
+		log.close();
+		File segment = directory.listFiles()[0];
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.seek(file.length() - 1);
+			int last = file.read();
+			file.seek(file.length() - 1);
+			file.write(last ^ 0xFF); // last byte of the last record
+		}
+
+		Records records = replay();
+		assertEquals(4, records.visits.size());
+		assertEquals(visit(3), records.visits.get(3));
+	}
+
+	/**
+	 * A batch that is written only in part must not break the records written after it.
+	 * */
+	@Test(timeout = 30_000)
+	public void failedWriteDoesNotBreakTheNextRecords() throws IOException, InterruptedException {
+		final List<TearingChannel> channels = new ArrayList<>();
+		DataLog log = new DataLog(directory) {
+			@Override
+			FileChannel open(File file) throws IOException {
+				TearingChannel channel = new TearingChannel(super.open(file));
+				channels.add(channel);
+				return channel;
+			}
+		};
+		log.replay(new Records());
+		log.start(0, 0);
+		Semaphore writes = channels.get(0).WRITES;
+		assertTrue(writes.tryAcquire(10, TimeUnit.SECONDS)); // the session record
+		for (int i=0; i<10; i++) { // one batch per record
+			if (i == 5)
+				log.appendVisit(i, TearingChannel.TORN, "red", 4_000 + i, i, HEALTH, 1_000L * i);
+			else
+				appendVisit(log, i);
+			assertTrue(writes.tryAcquire(10, TimeUnit.SECONDS));
+		}
+		log.close();
+
+		Records records = replay();
+		assertEquals(9, records.visits.size());
+		for (int i=0; i<9; i++)
+			assertEquals(visit(i < 5 ? i : i + 1), records.visits.get(i));
+	}
+}
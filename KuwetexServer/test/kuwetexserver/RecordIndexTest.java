@@ -0,0 +1,70 @@
+package kuwetexserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecordIndexTest {
+	private static final long MINUTE = 60_000;
+
+	private RecordIndex index;
+
+	@Before
+	public void setUp() {
+		index = new RecordIndex();
+		index.add(0, "Filemon", 0);
+		index.add(1, "Garfield", MINUTE - 1); // last ms of the first bucket
+		index.add(2, "Filemon", MINUTE); // first ms of the second bucket
+		index.add(3, "Garfield", 2 * MINUTE);
+		index.add(4, "Filemon", -1); // before the epoch, bucket -1
+	}
+
+	@Test
+	public void rangeIncludesItsStartAndExcludesItsEnd() {
+		assertArrayEquals(new int[] {0, 1}, index.find(null, 0, MINUTE, 5));
+		assertArrayEquals(new int[] {1, 2}, index.find(null, MINUTE - 1, MINUTE + 1, 5));
+		assertArrayEquals(new int[] {2}, index.find(null, MINUTE, MINUTE + 1, 5));
+		assertArrayEquals(new int[] {3}, index.find(null, 2 * MINUTE, 2 * MINUTE + 1, 5));
+	}
+
+	@Test
+	public void timesBeforeTheEpochAreFound() {
+		assertArrayEquals(new int[] {4}, index.find(null, -1, 0, 5));
+		assertArrayEquals(new int[] {0, 4}, index.find("Filemon", -MINUTE, 1, 5));
+	}
+
+	@Test
+	public void emptyOrReversedRangeFindsNothing() {
+		assertEquals(0, index.find(null, MINUTE, MINUTE, 5).length);
+		assertEquals(0, index.find(null, MINUTE, 0, 5).length);
+		assertEquals(0, index.find(null, 3 * MINUTE, 4 * MINUTE, 5).length);
+	}
+
+	@Test
+	public void recordsOfOneCatOnly() {
+		assertArrayEquals(new int[] {0, 2, 4}, index.find("Filemon", Long.MIN_VALUE / 2, Long.MAX_VALUE / 2, 5));
+		assertArrayEquals(new int[] {1, 3}, index.find("Garfield", 0, 3 * MINUTE, 5));
+		assertEquals(0, index.find("Dianusz", 0, 3 * MINUTE, 5).length);
+	}
+
+	@Test
+	public void recordsThatAreNotPublishedAreSkipped() {
+		assertArrayEquals(new int[] {0, 1}, index.find(null, 0, 3 * MINUTE, 2));
+		assertEquals(0, index.find(null, 0, 3 * MINUTE, 0).length);
+	}
+
+	@Test
+	public void bigBucketKeepsAllRecordsInOrder() {
+		RecordIndex big = new RecordIndex();
+		int count = 1_000;
+		for (int i=count-1; i>=0; i--) // added out of order, as by concurrent writers
+			big.add(i, "Filemon", i % MINUTE);
+		int[] found = big.find(null, 0, MINUTE, count);
+		assertEquals(count, found.length);
+		for (int i=0; i<count; i++)
+			assertEquals(i, found[i]);
+		assertEquals(10, big.find(null, 0, 10, count).length);
+	}
+}
@@ -0,0 +1,51 @@
+package kuwetexserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import network.EncodedText;
+
+public class RenderCacheTest {
+	private static final int LINE = 1_000; // chars of a record, so the segments fill quickly
+	private static final int RECORDS = 4_000; // about 60 segments, more than are kept
+
+	private static final RenderCache.Renderer RENDERER = new RenderCache.Renderer() {
+		@Override
+		public void append(int index, StringBuilder builder) {
+			builder.append("Visit #").append(index).append(" \u017c\u00f3\u0142ty ");
+			for (int i=0; i<LINE; i++)
+				builder.append((char) ('a' + index % 26));
+		}
+	};
+
+	private static String expected(int version) {
+		StringBuilder builder = new StringBuilder();
+		for (int i=0; i<version; i++) {
+			StringBuilder line = new StringBuilder();
+			RENDERER.append(i, line);
+			builder.append(line).append("\n");
+		}
+		return builder.toString();
+	}
+
+	@Test
+	public void segmentsThatAreNotKeptAreRenderedTheSame() {
+		RenderCache cache = new RenderCache(RENDERER);
+		for (int version : new int[] {0, 1, 65, 66, 67, 1_000, 2_500, RECORDS}) {
+			assertEquals(expected(version), cache.get(version).toString());
+			System.gc(); // the next version can not take the old segments from this text
+		}
+	}
+
+	@Test
+	public void olderVersionIsAnsweredWithTheNewestText() {
+		RenderCache cache = new RenderCache(RENDERER);
+		EncodedText text = cache.get(RECORDS);
+		assertSame(text, cache.get(RECORDS));
+		assertSame(text, cache.get(10)); // it may contain later records
+		System.gc();
+		assertEquals(expected(RECORDS), cache.get(10).toString());
+	}
+}
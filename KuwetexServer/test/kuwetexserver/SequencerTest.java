@@ -0,0 +1,83 @@
+package kuwetexserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class SequencerTest {
+	private static final int WRITERS = 4, RECORDS = 20_000; // per writer
+
+	@Test
+	public void publishedCountStopsAtTheFirstUnfinishedRecord() {
+		Sequencer sequencer = new Sequencer();
+		int first = sequencer.claim(), second = sequencer.claim(), third = sequencer.claim();
+		assertEquals(0, first);
+		assertEquals(2, third);
+		sequencer.publish(second);
+		assertEquals(0, sequencer.published());
+		sequencer.publish(first); // moves the mark over the second one too
+		assertEquals(2, sequencer.published());
+		sequencer.publish(third);
+		assertEquals(3, sequencer.published());
+	}
+
+	/**
+	 * Writers claim and publish at the same time while a reader checks that every record
+	 * below the published count is complete.
+	 * */
+	@Test(timeout = 60_000)
+	public void concurrentWritersPublishEveryRecordOnce() throws InterruptedException {
+		final Sequencer sequencer = new Sequencer();
+		final int total = WRITERS * RECORDS;
+		final AtomicIntegerArray written = new AtomicIntegerArray(total);
+		final AtomicReference<String> failure = new AtomicReference<>();
+		List<Thread> writers = new ArrayList<>();
+		for (int w=0; w<WRITERS; w++) {
+			writers.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i=0; i<RECORDS; i++) {
+						int index = sequencer.claim();
+						if (written.getAndIncrement(index) != 0)
+							failure.compareAndSet(null, "Record " + index + " was claimed twice.");
+						if (i % 7 == 0)
+							Thread.yield(); // let later records be published first
+						sequencer.publish(index);
+					}
+				}
+			}));
+		}
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int checked = 0;
+				while (checked < total) {
+					int published = sequencer.published();
+					if (published == checked)
+						Thread.yield();
+					if (published < checked)
+						failure.compareAndSet(null, "Published count went back from " + checked + " to " + published);
+					for (; checked < published; checked++)
+						if (written.get(checked) != 1)
+							failure.compareAndSet(null, "Record " + checked + " is published but not complete.");
+				}
+			}
+		});
+		reader.start();
+		for (Thread writer : writers)
+			writer.start();
+		for (Thread writer : writers)
+			writer.join();
+		reader.join();
+		assertEquals(null, failure.get());
+		assertEquals(total, sequencer.published());
+		for (int i=0; i<total; i++)
+			assertTrue("Record " + i + " was not claimed.", written.get(i) == 1);
+	}
+}
@@ -0,0 +1,97 @@
+package kuwetexserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class StatisticsTest {
+	private static final long MINUTE = 60_000, HOUR = 60 * MINUTE, DAY = 24 * HOUR;
+	private static final long NOW = 100 * DAY;
+
+	/**
+	 * @return Lines of the hour, the day and the week of the cat.
+	 * */
+	private static String[] windows(Statistics statistics, String cat) {
+		StringBuilder builder = new StringBuilder();
+		statistics.appendTo(cat, NOW, builder);
+		String[] lines = builder.toString().split("\n");
+		assertEquals(4, lines.length);
+		assertEquals(cat, lines[0]);
+		return new String[] {lines[1], lines[2], lines[3]};
+	}
+
+	@Test
+	public void visitsAreCountedOnlyInTheWindowsTheyAreIn() {
+		Statistics statistics = new Statistics();
+		statistics.visit("Filemon", NOW - 10 * MINUTE, 1_000, 4_000);
+		statistics.visit("Filemon", NOW - 2 * HOUR, 1_000, 4_000);
+		statistics.visit("Filemon", NOW - 2 * DAY, 1_000, 4_000);
+		statistics.visit("Filemon", NOW - 8 * DAY, 1_000, 4_000); // older than all windows
+		String[] windows = windows(statistics, "Filemon");
+		assertTrue(windows[0], windows[0].startsWith("  last hour: 1 visits"));
+		assertTrue(windows[1], windows[1].startsWith("  last day: 2 visits"));
+		assertTrue(windows[2], windows[2].startsWith("  last week: 3 visits"));
+	}
+
+	@Test
+	public void oldSlotIsClearedWhenItIsUsedAgain() {
+		Statistics statistics = new Statistics();
+		statistics.visit("Filemon", NOW - 7 * DAY, 1_000, 4_000); // same slot of the week ring as NOW
+		statistics.visit("Filemon", NOW, 2_000, 5_000);
+		String[] windows = windows(statistics, "Filemon");
+		assertTrue(windows[2], windows[2].startsWith("  last week: 1 visits"));
+		assertTrue(windows[2], windows[2].contains("average 2000ms"));
+		assertTrue(windows[2], windows[2].contains("weight: average 5.0 kg"));
+	}
+
+	@Test
+	public void illnessesAreCountedWithTheVisits() {
+		Statistics statistics = new Statistics();
+		for (int i=0; i<4; i++)
+			statistics.visit("Garfield", NOW - i * MINUTE, 1_000, 4_000);
+		statistics.illness("Garfield", NOW - MINUTE);
+		String[] windows = windows(statistics, "Garfield");
+		assertTrue(windows[0], windows[0].endsWith("illnesses: 1 (25.0% of visits)"));
+		assertTrue(windows[2], windows[2].startsWith("  last week: 4 visits"));
+	}
+
+	@Test
+	public void unknownCatHasNoStatistics() {
+		Statistics statistics = new Statistics();
+		statistics.visit("Filemon", NOW, 1_000, 4_000);
+		StringBuilder builder = new StringBuilder();
+		statistics.appendTo("Dianusz", NOW, builder);
+		assertEquals("", builder.toString());
+	}
+
+	/**
+	 * Every visit is the same, so a reader that saw a visit counted but its time or weight
+	 * not added yet would show other averages.
+	 * */
+	@Test(timeout = 60_000)
+	public void readerSeesWholeVisitsWhileTheyAreAdded() throws InterruptedException {
+		final Statistics statistics = new Statistics();
+		final AtomicBoolean done = new AtomicBoolean(false);
+		statistics.visit("Filemon", NOW, 1_000, 4_000);
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i=0; i<200_000; i++)
+					statistics.visit("Filemon", NOW - (i % 60) * MINUTE, 1_000, 4_000);
+				done.set(true);
+			}
+		});
+		writer.start();
+		while ( ! done.get()) {
+			for (String window : windows(statistics, "Filemon"))
+				if ( ! window.contains(" 0 visits")) {
+					assertTrue(window, window.contains("average 1000ms"));
+					assertTrue(window, window.contains("weight: average 4.0 kg"));
+				}
+		}
+		writer.join();
+	}
+}